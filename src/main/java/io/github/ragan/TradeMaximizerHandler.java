@@ -8,14 +8,19 @@ import java.io.*;
 
 public class TradeMaximizerHandler implements HttpHandler {
 
-    private final TradeMaximizer tradeMaximizer = new TradeMaximizer();
+    private final String[] args;
+
+    public TradeMaximizerHandler(String... args) {
+        this.args = args;
+    }
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
         exchange.sendResponseHeaders(200, 0);
         OutputStream tos = teeOutputStream(exchange.getResponseBody(), System.out);
 
-        tradeMaximizer.run(new String[]{}, exchange.getRequestBody(), tos);
+        // options are kept in the maximizer, so each request gets its own
+        new TradeMaximizer().run(args, exchange.getRequestBody(), tos);
         tos.write("\ntest\n\n".getBytes());
         tos.close();
     }
@@ -10,6 +10,7 @@ public class TradeMaximizerWeb {
     public static void main(String[] args) throws IOException {
         HttpServer httpServer = HttpServer.create(new InetSocketAddress("", 12345), 0);
         httpServer.createContext("/", new TradeMaximizerHandler());
+        httpServer.createContext("/preview", new TradeMaximizerHandler("--preview"));
         httpServer.setExecutor(null);
         httpServer.start();
     }
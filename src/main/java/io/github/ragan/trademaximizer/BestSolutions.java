@@ -0,0 +1,59 @@
+package io.github.ragan.trademaximizer;
+
+import java.util.*;
+
+// The best solutions found so far under one metric, for METRIC= with
+// several metrics or for TOP-SOLUTIONS=.  Up to keep distinct matchings are
+// kept, best first, and among equal values the one found first stays ahead.
+// A matching that drops off the end is reused for the next one kept.
+class BestSolutions {
+
+  static class Solution {
+    int value;
+    int evaluation;
+    String description; // the metric's toString when it was found
+    Graph.Matching matching = new Graph.Matching();
+  }
+
+  final String name;
+  final Metrics metric;
+  final int keep;
+  final List<Solution> solutions = new ArrayList<Solution>();
+  int value; // of the last matching offered
+
+  BestSolutions(String name, Metrics metric, int keep) {
+    if (keep < 1) throw new IllegalArgumentException("keep " + keep);
+    this.name = name;
+    this.metric = metric;
+    this.keep = keep;
+  }
+
+  Solution best() { return solutions.get(0); }
+
+  // Scores the current matching and keeps it if it is among the best so
+  // far.  Returns true if it is the new best.
+  boolean offer(Graph graph, Graph.Cycles cycles, int evaluation) {
+    value = metric.calculate(cycles);
+    int n = solutions.size();
+    if (n == keep && value >= solutions.get(n-1).value) return false;
+
+    int at = n;
+    while (at > 0 && solutions.get(at-1).value > value) at--;
+    if (keep > 1) {
+      int hash = graph.matchingHash();
+      for (int i = at-1; i >= 0 && solutions.get(i).value == value; i--) {
+        Graph.Matching m = solutions.get(i).matching;
+        if (m.hash == hash && graph.sameMatching(m)) return false;
+      }
+    }
+
+    Solution solution = n == keep ? solutions.remove(n-1) : new Solution();
+    solution.value = value;
+    solution.evaluation = evaluation;
+    solution.description = metric.toString();
+    graph.saveMatching(solution.matching);
+    solutions.add(at, solution);
+    return at == 0;
+  }
+
+} // end BestSolutions
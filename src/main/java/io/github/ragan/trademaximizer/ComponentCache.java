@@ -0,0 +1,173 @@
+package io.github.ragan.trademaximizer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// Solved components kept from one solve to the next, for CACHE-COMPONENTS.
+// No edge joins two components once removeImpossibleEdges has run, so each
+// one can be matched on its own, and an upload that changes a few want
+// lists leaves most of them exactly as they were.  A component is keyed by
+// a digest of its items and edges in name order, and the cache holds its
+// matching and prices in the same order.  Cached components are put back
+// before the solve, so only the others are solved; the prices left by a
+// solve are optimal on each component alone, so the result is optimal.
+//
+// The cache is bounded by the items it holds, about 32 bytes each, and
+// drops the components used least recently first.  restore and store
+// share nothing but the entries, so concurrent solves only lock for the
+// lookups.
+class ComponentCache {
+
+  static final int MAX_ITEMS = 1 << 20;
+
+  // kept for the life of the process, so the web server shares it
+  static final ComponentCache SHARED = new ComponentCache();
+
+  private static class Entry {
+    int[] match; // by position, the position of the item received
+    long[] cost;
+    long[] receiverPrice;
+    long[] senderPrice;
+  }
+
+  private final LinkedHashMap<ByteBuffer,Entry> entries =
+    new LinkedHashMap<ByteBuffer,Entry>(16, 0.75f, true);
+  private long items = 0;
+
+  // the components of one solve that were not found, to be stored
+  static class Misses {
+    final List<Graph.Vertex[]> groups = new ArrayList<Graph.Vertex[]>();
+    final List<ByteBuffer> keys = new ArrayList<ByteBuffer>();
+    int hits; // for VERBOSE
+    int components;
+
+    // the receivers left to solve, in the graph's order
+    Graph.Vertex[] receivers(Graph graph) {
+      Set<Graph.Vertex> missed = new HashSet<Graph.Vertex>();
+      for (Graph.Vertex[] group : groups) missed.addAll(Arrays.asList(group));
+      List<Graph.Vertex> list = new ArrayList<Graph.Vertex>(missed.size());
+      for (Graph.Vertex v : graph.RECEIVERS) {
+        if (missed.contains(v)) list.add(v);
+      }
+      return list.toArray(new Graph.Vertex[0]);
+    }
+  }
+
+  // Matches and prices every component that is in the cache, and returns
+  // the others.  Those are left as they are.
+  Misses restore(Graph graph) {
+    Misses misses = new Misses();
+    List<Graph.Vertex[]> groups = components(graph);
+    misses.components = groups.size();
+    for (Graph.Vertex[] group : groups) {
+      ByteBuffer key = key(group);
+      Entry entry;
+      synchronized (this) {
+        entry = entries.get(key);
+      }
+      if (entry == null) {
+        misses.groups.add(group);
+        misses.keys.add(key);
+        continue;
+      }
+      for (int i = 0; i < group.length; i++) {
+        Graph.Vertex receiver = group[i];
+        Graph.Vertex sender = group[entry.match[i]].twin;
+        receiver.match = sender;
+        sender.match = receiver;
+        receiver.matchCost = entry.cost[i];
+        receiver.price = entry.receiverPrice[i];
+        receiver.twin.price = entry.senderPrice[i];
+      }
+      misses.hits++;
+    }
+    return misses;
+  }
+
+  // stores the components that restore did not find, once they are solved
+  void store(Misses misses) {
+    for (int k = 0; k < misses.groups.size(); k++) {
+      Graph.Vertex[] group = misses.groups.get(k);
+      Map<Graph.Vertex,Integer> position = new HashMap<Graph.Vertex,Integer>();
+      for (int i = 0; i < group.length; i++) position.put(group[i], i);
+      Entry entry = new Entry();
+      entry.match = new int[group.length];
+      entry.cost = new long[group.length];
+      entry.receiverPrice = new long[group.length];
+      entry.senderPrice = new long[group.length];
+      for (int i = 0; i < group.length; i++) {
+        Graph.Vertex receiver = group[i];
+        entry.match[i] = position.get(receiver.match.twin);
+        entry.cost[i] = receiver.matchCost;
+        entry.receiverPrice[i] = receiver.price;
+        entry.senderPrice[i] = receiver.twin.price;
+      }
+      put(misses.keys.get(k), entry);
+    }
+  }
+
+  private synchronized void put(ByteBuffer key, Entry entry) {
+    Entry old = entries.put(key, entry);
+    if (old != null) items -= old.match.length;
+    items += entry.match.length;
+    Iterator<Entry> eldest = entries.values().iterator();
+    while (items > MAX_ITEMS) {
+      items -= eldest.next().match.length;
+      eldest.remove();
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  private static final Comparator<Graph.Vertex> BY_NAME = new Comparator<Graph.Vertex>() {
+    public int compare(Graph.Vertex a, Graph.Vertex b) { return a.name.compareTo(b.name); }
+  };
+  private static final Comparator<Graph.Edge> BY_SENDER = new Comparator<Graph.Edge>() {
+    public int compare(Graph.Edge a, Graph.Edge b) { return a.sender.twin.name.compareTo(b.sender.twin.name); }
+  };
+
+  // the receivers of each component, in name order
+  private static List<Graph.Vertex[]> components(Graph graph) {
+    Map<Integer,List<Graph.Vertex>> byLabel = new HashMap<Integer,List<Graph.Vertex>>();
+    for (Graph.Vertex v : graph.RECEIVERS) {
+      List<Graph.Vertex> group = byLabel.get(v.component);
+      if (group == null) byLabel.put(v.component, group = new ArrayList<Graph.Vertex>());
+      group.add(v);
+    }
+    List<Graph.Vertex[]> groups = new ArrayList<Graph.Vertex[]>(byLabel.size());
+    for (List<Graph.Vertex> group : byLabel.values()) {
+      Graph.Vertex[] sorted = group.toArray(new Graph.Vertex[0]);
+      Arrays.sort(sorted, BY_NAME);
+      groups.add(sorted);
+    }
+    return groups;
+  }
+
+  private static ByteBuffer key(Graph.Vertex[] group) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+    for (Graph.Vertex v : group) {
+      digest.update(v.name.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte)'\n');
+      Graph.Edge[] edges = v.EDGES.clone();
+      Arrays.sort(edges, BY_SENDER);
+      for (Graph.Edge e : edges) {
+        digest.update((byte)' ');
+        digest.update(e.sender.twin.name.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)' ');
+        digest.update(Long.toString(e.cost).getBytes(StandardCharsets.UTF_8));
+      }
+      digest.update((byte)'\n');
+    }
+    return ByteBuffer.wrap(digest.digest());
+  }
+
+} // end ComponentCache
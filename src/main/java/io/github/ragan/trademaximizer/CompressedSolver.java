@@ -0,0 +1,299 @@
+package io.github.ragan.trademaximizer;
+
+import java.util.*;
+
+// Solves the matching over classes of interchangeable items.  Items whose
+// want lists lead to exactly the same senders at exactly the same costs can
+// be permuted freely in any solution, so each such class becomes a single
+// node with a supply equal to its size and the problem becomes a min-cost
+// flow that sends one unit into every sender.  Every member keeps its own
+// no-trade edge to its twin.  Successive shortest paths run on the class
+// nodes, and the flow is then expanded back into a matching of individual
+// items, with prices that are also valid for the full graph.
+class CompressedSolver {
+
+  private final Graph graph;
+
+  // indexed by class number
+  private Graph.Vertex[][] members;
+  private int[][] target; // sender ids
+  private long[][] cost;
+  private int[] supply;
+  private long[] classPrice;
+  private long[] classDist;
+  private int[] classFrom; // sender through which the class was reached
+  private int[] classMark;
+  private int[] classSettled;
+
+  // indexed by sender id
+  private int[] classOf; // class of the receiver with the same id
+  private int[] senderClass; // -1 if unmatched
+  private long[] senderCost;
+  private long[] senderPrice;
+  private long[] senderDist;
+  private int[] senderFrom;
+  private long[] senderFromCost;
+  private int[] senderMark;
+  private int[] senderSettled;
+
+  private int stamp = 0;
+  private long sinkCost;
+  private List<Integer> settled = new ArrayList<Integer>();
+
+  CompressedSolver(Graph graph) {
+    this.graph = graph;
+  }
+
+  int classes() { return members.length; }
+
+  // Each class costs more to search than a single item, so unless the
+  // classes at least halve the receivers the plain solvers are faster.
+  // Returns false, with nothing solved, in that case.
+  boolean solve() {
+    Map<String,List<Graph.Vertex>> classes = classify();
+    graph.itemClasses = classes.size();
+    if (classes.size() > graph.RECEIVERS.length / 2) return false;
+    buildClasses(classes);
+
+    int remaining = graph.RECEIVERS.length - greedyMatch();
+    while (remaining > 0) {
+      int sink = shortestPath();
+      assert sink >= 0;
+      updatePrices();
+      augment(sink);
+      remaining--;
+    }
+
+    expand();
+    return true;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  private String signature(Graph.Vertex v) {
+    StringBuilder str = new StringBuilder(v.isDummy ? "D" : "R");
+    Graph.Edge[] edges = v.EDGES.clone();
+    Arrays.sort(edges, (a, b) -> Integer.compare(a.sender.id, b.sender.id));
+    for (Graph.Edge e : edges) {
+      if (e.sender == v.twin) str.append(" self=").append(e.cost);
+    }
+    for (Graph.Edge e : edges) {
+      if (e.sender != v.twin)
+        str.append(' ').append(e.sender.id).append('=').append(e.cost);
+    }
+    return str.toString();
+  }
+
+  private Map<String,List<Graph.Vertex>> classify() {
+    Map<String,List<Graph.Vertex>> classes =
+        new LinkedHashMap<String,List<Graph.Vertex>>();
+    for (Graph.Vertex v : graph.RECEIVERS) {
+      String key = signature(v);
+      List<Graph.Vertex> list = classes.get(key);
+      if (list == null) classes.put(key, list = new ArrayList<Graph.Vertex>());
+      list.add(v);
+    }
+    return classes;
+  }
+
+  private void buildClasses(Map<String,List<Graph.Vertex>> classes) {
+    int k = classes.size();
+    members = new Graph.Vertex[k][];
+    target = new int[k][];
+    cost = new long[k][];
+    supply = new int[k];
+    classPrice = new long[k];
+    classDist = new long[k];
+    classFrom = new int[k];
+    classMark = new int[k];
+    classSettled = new int[k];
+
+    int n = graph.receivers.size();
+    classOf = new int[n];
+    senderClass = new int[n];
+    senderCost = new long[n];
+    senderPrice = new long[n];
+    senderDist = new long[n];
+    senderFrom = new int[n];
+    senderFromCost = new long[n];
+    senderMark = new int[n];
+    senderSettled = new int[n];
+
+    int c = 0;
+    for (List<Graph.Vertex> list : classes.values()) {
+      members[c] = list.toArray(new Graph.Vertex[0]);
+      supply[c] = members[c].length;
+      Graph.Vertex first = members[c][0];
+      int size = first.EDGES.length - 1 + members[c].length;
+      target[c] = new int[size];
+      cost[c] = new long[size];
+      int i = 0;
+      for (Graph.Edge e : first.EDGES) {
+        if (e.sender == first.twin) continue;
+        target[c][i] = e.sender.id;
+        cost[c][i++] = e.cost;
+      }
+      for (Graph.Vertex m : members[c]) {
+        classOf[m.id] = c;
+        for (Graph.Edge e : m.EDGES) {
+          if (e.sender != m.twin) continue;
+          target[c][i] = e.sender.id;
+          cost[c][i++] = e.cost;
+        }
+      }
+      assert i == size;
+      c++;
+    }
+
+    for (Graph.Vertex s : graph.SENDERS) {
+      senderClass[s.id] = -1;
+      senderPrice[s.id] = s.minimumInCost;
+    }
+  }
+
+  private void match(int s, int c, long edgeCost) {
+    senderClass[s] = c;
+    senderCost[s] = edgeCost;
+  }
+
+  // the counterpart of Graph.greedyMatch
+  private int greedyMatch() {
+    int matched = 0;
+    for (int c = 0; c < members.length; c++) {
+      for (int i = 0; i < target[c].length && supply[c] > 0; i++) {
+        int s = target[c][i];
+        if (senderClass[s] == -1 && cost[c][i] == senderPrice[s]) {
+          match(s, c, cost[c][i]);
+          supply[c]--;
+          matched++;
+        }
+      }
+    }
+    return matched;
+  }
+
+  // Dijkstra from every class with supply left, stopping at the first
+  // unmatched sender, which is returned.
+  private int shortestPath() {
+    stamp++;
+    settled.clear();
+    int k = members.length;
+    PriorityQueue<long[]> heap = new PriorityQueue<long[]>(11,
+        (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0])
+                               : Long.compare(a[1], b[1]));
+    for (int c = 0; c < k; c++) {
+      if (supply[c] == 0) continue;
+      classMark[c] = stamp;
+      classDist[c] = 0;
+      classFrom[c] = -1;
+      heap.add(new long[] { 0, c });
+    }
+
+    while (!heap.isEmpty()) {
+      long[] top = heap.poll();
+      long d = top[0];
+      int node = (int)top[1];
+      if (node < k) {
+        int c = node;
+        if (classSettled[c] == stamp) continue;
+        classSettled[c] = stamp;
+        settled.add(node);
+        for (int i = 0; i < target[c].length; i++) {
+          int s = target[c][i];
+          if (senderClass[s] == c || senderSettled[s] == stamp) continue;
+          long r = classPrice[c] + cost[c][i] - senderPrice[s];
+          assert r >= 0;
+          if (senderMark[s] != stamp || d + r < senderDist[s]) {
+            senderMark[s] = stamp;
+            senderDist[s] = d + r;
+            senderFrom[s] = c;
+            senderFromCost[s] = cost[c][i];
+            heap.add(new long[] { d + r, k + s });
+          }
+        }
+      }
+      else {
+        int s = node - k;
+        if (senderSettled[s] == stamp) continue;
+        senderSettled[s] = stamp;
+        settled.add(node);
+        int c = senderClass[s];
+        if (c == -1) {
+          sinkCost = d;
+          return s;
+        }
+        long r = senderPrice[s] - senderCost[s] - classPrice[c];
+        assert r >= 0;
+        if (classSettled[c] != stamp &&
+            (classMark[c] != stamp || d + r < classDist[c])) {
+          classMark[c] = stamp;
+          classDist[c] = d + r;
+          classFrom[c] = s;
+          heap.add(new long[] { d + r, c });
+        }
+      }
+    }
+    return -1;
+  }
+
+  // see Graph.updatePrices
+  private void updatePrices() {
+    int k = members.length;
+    for (int node : settled) {
+      if (node < k)
+        classPrice[node] += Math.min(classDist[node], sinkCost) - sinkCost;
+      else
+        senderPrice[node-k] += Math.min(senderDist[node-k], sinkCost) - sinkCost;
+    }
+  }
+
+  private void augment(int s) {
+    while (true) {
+      int c = senderFrom[s];
+      int prev = classFrom[c];
+      match(s, c, senderFromCost[s]);
+      if (prev < 0) {
+        supply[c]--;
+        return;
+      }
+      s = prev; // prev moves from class c to the class it was reached from
+    }
+  }
+
+  // Turns the flow back into a matching.  A member whose own sender is
+  // assigned to its class keeps its item; the other senders of a class go
+  // to the remaining members in turn.
+  private void expand() {
+    List<List<Graph.Vertex>> assigned = new ArrayList<List<Graph.Vertex>>();
+    for (int c = 0; c < members.length; c++)
+      assigned.add(new ArrayList<Graph.Vertex>());
+    for (Graph.Vertex s : graph.SENDERS) {
+      s.price = senderPrice[s.id];
+      s.match = null;
+      assigned.get(senderClass[s.id]).add(s);
+    }
+
+    for (int c = 0; c < members.length; c++) {
+      for (Graph.Vertex m : members[c]) {
+        m.price = classPrice[c];
+        m.match = null;
+      }
+      List<Graph.Vertex> others = new ArrayList<Graph.Vertex>();
+      for (Graph.Vertex s : assigned.get(c)) {
+        if (classOf[s.id] == c && s.twin.match == null) link(s.twin, s);
+        else others.add(s);
+      }
+      int next = 0;
+      for (Graph.Vertex m : members[c]) {
+        if (m.match == null) link(m, others.get(next++));
+      }
+    }
+  }
+
+  private void link(Graph.Vertex receiver, Graph.Vertex sender) {
+    receiver.match = sender;
+    receiver.matchCost = senderCost[sender.id];
+    sender.match = receiver;
+  }
+
+} // end CompressedSolver
@@ -1,6 +1,7 @@
 package io.github.ragan.trademaximizer;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Graph {
 
@@ -23,19 +24,21 @@ public class Graph {
     Edge[] EDGES;
 
     // internal data for graph algorithms
-    private long minimumInCost = Long.MAX_VALUE; // only kept in the senders
+    long minimumInCost = Long.MAX_VALUE; // only kept in the senders
     Vertex twin;
+    int id; // position in the original vertex lists, shared by the twins
+    int tie = 0; // random key for breaking ties, see randomTies
     private int mark = 0; // used for marking as visited in dfs and dijkstra
     Vertex match = null;
     long matchCost = 0;
     private Vertex from = null;
-    private long price = 0;
+    long price = 0;
+    private long dist = 0; // distance found by the last shortest path search
+    private int layer = -1; // breadth-first layer in hopcroftKarp
     private Heap.Entry heapEntry = null;
-    private int component = 0;
+    int component = 0;
     boolean used = false;
-
-    Vertex savedMatch = null;
-    long savedMatchCost = 0;
+    int userId; // index into USERS, shared by the twins
   }
 
   public static class Edge {
@@ -75,7 +78,7 @@ public class Graph {
   }
 
   public Edge addEdge(Vertex receiver,Vertex sender,long cost) {
-    assert !frozen;
+    assert !frozen || incremental;
     Edge edge = new Edge(receiver,sender,cost);
     receiver.edges.add(edge);
     sender.edges.add(edge);
@@ -90,6 +93,66 @@ public class Graph {
     return null;
   }
 
+  // Removes dummy items before solving wherever that cannot change the
+  // answer.  A dummy costs the same whether it is used or not, so a path
+  // receiver -> dummy -> sender is worth exactly a direct edge from receiver
+  // to sender with the cost of the first step.  That replacement is only
+  // faithful when the dummy cannot be used twice, that is when at most one
+  // item wants it or it wants at most one item, so dummies that have
+  // several of both are left for elideDummies.  Returns the number of
+  // dummies removed.
+  int contractDummies() {
+    assert !frozen;
+    Deque<Vertex> work = new ArrayDeque<Vertex>();
+    for (Vertex v : receivers) {
+      if (v.isDummy) work.add(v);
+    }
+    Set<Vertex> removed = new HashSet<Vertex>();
+
+    while (!work.isEmpty()) {
+      Vertex dummy = work.poll();
+      if (removed.contains(dummy)) continue;
+      List<Edge> in = new ArrayList<Edge>();
+      List<Edge> out = new ArrayList<Edge>();
+      for (Edge e : dummy.twin.edges) {
+        if (e.receiver != dummy) in.add(e);
+      }
+      for (Edge e : dummy.edges) {
+        if (e.sender != dummy.twin) out.add(e);
+      }
+      if (in.size() > 1 && out.size() > 1) continue;
+
+      for (Edge e : in) e.receiver.edges.remove(e);
+      for (Edge e : out) e.sender.edges.remove(e);
+      for (Edge a : in) {
+        for (Edge b : out) {
+          Vertex receiver = a.receiver;
+          Vertex sender = b.sender;
+          if (sender == receiver.twin) continue;
+          Edge edge = getEdge(receiver, sender);
+          if (edge == null) addEdge(receiver, sender, a.cost);
+          else if (a.cost < edge.cost) {
+            edge.cost = a.cost;
+            sender.minimumInCost = Math.min(a.cost, sender.minimumInCost);
+          }
+        }
+      }
+      removed.add(dummy);
+
+      // the neighbours may have become contractible in turn
+      for (Edge a : in) {
+        if (a.receiver.isDummy) work.add(a.receiver);
+      }
+      for (Edge b : out) {
+        if (b.sender.isDummy) work.add(b.sender.twin);
+      }
+    }
+
+    receivers.removeIf(v -> removed.contains(v));
+    senders.removeIf(v -> removed.contains(v.twin));
+    return removed.size();
+  }
+
   boolean frozen = false;
   
   void freeze() {
@@ -97,9 +160,21 @@ public class Graph {
     
     RECEIVERS = receivers.toArray(new Vertex[0]);
     SENDERS = senders.toArray(new Vertex[0]);
+    for (int i = 0; i < RECEIVERS.length; i++)
+      RECEIVERS[i].id = SENDERS[i].id = i;
     Edge[] tmp = new Edge[0];
     for (Vertex v : RECEIVERS) v.EDGES = v.edges.toArray(tmp);
     for (Vertex v : SENDERS) v.EDGES = v.edges.toArray(tmp);
+
+    Map<String,Integer> userIds = new HashMap<String,Integer>();
+    for (Vertex v : RECEIVERS) {
+      Integer id = userIds.get(v.user);
+      if (id == null) userIds.put(v.user, id = userIds.size());
+      v.userId = v.twin.userId = id;
+    }
+    USERS = new String[userIds.size()];
+    for (Map.Entry<String,Integer> entry : userIds.entrySet())
+      USERS[entry.getValue()] = entry.getKey();
     
     frozen = true;
   }
@@ -108,6 +183,7 @@ public class Graph {
   List<Vertex> senders   = new ArrayList<Vertex>();
   Vertex[] RECEIVERS;
   Vertex[] SENDERS;
+  String[] USERS; // the distinct users, null if there are no usernames
 
   List<Vertex> orphans = new ArrayList<Vertex>();
 
@@ -150,6 +226,21 @@ public class Graph {
     sender.component = sender.twin.component = component;
   }
 
+  void labelComponents() {
+    advanceTimestamp();
+    finished = new ArrayList<Vertex>(RECEIVERS.length);
+    
+    for (Vertex v : RECEIVERS)
+      if (v.mark != timestamp) visitReceivers(v);
+    Collections.reverse(finished);
+    for (Vertex v : finished) {
+      if (v.mark != timestamp) {
+        component++;
+        visitSenders(v);
+      }
+    }
+  }
+
   Edge[] removeBadEdges(Edge[] edges) {
     int goodCount = 0;
     for (Edge edge : edges) {
@@ -169,20 +260,16 @@ public class Graph {
 
   void removeImpossibleEdges() {
     assert frozen;
-    
-    advanceTimestamp();
-    finished = new ArrayList<Vertex>(RECEIVERS.length);
-    
+    removeCrossEdges();
+    removeOrphans();
+  }
+
+  void removeCrossEdges() {
     // run strongly connected components and label all the components
-    for (Vertex v : RECEIVERS)
-      if (v.mark != timestamp) visitReceivers(v);
-    Collections.reverse(finished);
-    for (Vertex v : finished) {
-      if (v.mark != timestamp) {
-        component++;
-        visitSenders(v);
-      }
-    }
+    if (pool != null)
+      component = new ParallelComponents(RECEIVERS, component).label(pool);
+    else
+      labelComponents();
     
     // now remove all edges between two different components
     for (Vertex v : RECEIVERS) {
@@ -196,8 +283,6 @@ public class Graph {
       for (Edge edge : v.EDGES)
         v.minimumInCost = Math.min(edge.cost,v.minimumInCost);
     }
-
-    removeOrphans();
   }
 
   void removeOrphans() {
@@ -226,6 +311,339 @@ public class Graph {
     SENDERS = senders;
   }
   
+  //////////////////////////////////////////////////////////////////////
+  // LOW-MEMORY: once the edges are final (after removeImpossibleEdges and
+  // orderForLocality), the edge lists and the name map are only needed to
+  // build the graph, and the solvers only use EDGES, so they are dropped.
+  // Each sender also shares the name of its receiver instead of keeping
+  // its own copy with " sender" on the end.  Orphans are left alone, and
+  // an incremental graph keeps everything, since it goes on building.
+
+  void releaseBuildData() {
+    assert frozen && !incremental;
+    for (Vertex v : RECEIVERS) {
+      v.edges = null;
+      v.twin.edges = null;
+      v.twin.name = v.name;
+    }
+    nameMap = null;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+  // Incremental updates, for TradeSession.  Every item stays in RECEIVERS
+  // (there are no orphans), so only the want lists change.  When the edges
+  // out of one item change, every new cycle passes through that item, so
+  // its component can only merge with components on such a cycle, and the
+  // only component that can split is its old one.  repair relabels just
+  // those, and then mends the matching from the previous prices, so that
+  // only the items that lost their match are augmented again.
+
+  boolean incremental = false;
+
+  void startIncremental() {
+    assert frozen && !incremental;
+    incremental = true;
+    removeCrossEdges();
+  }
+
+  // Removes every edge out of receiver, before its new want list is added.
+  void clearEdges(Vertex receiver) {
+    assert incremental;
+    for (Edge e : receiver.edges) e.sender.edges.remove(e);
+    receiver.edges.clear();
+  }
+
+  // marks with bit everything reachable from receiver along the edges, or
+  // against them when forward is false
+  private void reachAll(Vertex receiver, boolean forward, byte[] marks, int bit) {
+    Deque<Vertex> queue = new ArrayDeque<Vertex>();
+    marks[receiver.id] |= bit;
+    queue.add(receiver);
+    while (!queue.isEmpty()) {
+      Vertex v = queue.poll();
+      for (Edge e : forward ? v.edges : v.twin.edges) {
+        Vertex w = forward ? e.sender.twin : e.receiver;
+        if ((marks[w.id] & bit) != 0) continue;
+        marks[w.id] |= bit;
+        queue.add(w);
+      }
+    }
+  }
+
+  private Edge[] sameComponent(List<Edge> edges) {
+    List<Edge> good = new ArrayList<Edge>(edges.size());
+    for (Edge e : edges) {
+      if (e.receiver.component == e.sender.component) good.add(e);
+    }
+    return good.toArray(new Edge[0]);
+  }
+
+  // Brings the components and the matching up to date after the edges out
+  // of receiver have changed.  Returns the number of items re-augmented.
+  int repair(Vertex receiver) {
+    assert incremental;
+
+    // the new component of receiver is what it reaches and is reached by;
+    // whatever else was in its old component is labelled afresh
+    byte[] marks = new byte[receivers.size()];
+    reachAll(receiver, true, marks, 1);
+    reachAll(receiver, false, marks, 2);
+    int old = receiver.component;
+    int label = ++component;
+    List<Vertex> affected = new ArrayList<Vertex>();
+    List<Vertex> rest = new ArrayList<Vertex>();
+    for (Vertex v : RECEIVERS) {
+      if (marks[v.id] == 3) {
+        v.component = v.twin.component = label;
+        affected.add(v);
+      }
+      else if (v.component == old) rest.add(v);
+    }
+    if (!rest.isEmpty()) {
+      ForkJoinPool p = pool != null ? pool : ForkJoinPool.commonPool();
+      component = new ParallelComponents(rest.toArray(new Vertex[0]), component).label(p);
+      affected.addAll(rest);
+    }
+    for (Vertex v : affected) {
+      v.EDGES = sameComponent(v.edges);
+      v.twin.EDGES = sameComponent(v.twin.edges);
+    }
+
+    // matches never cross components, so this stays inside affected
+    int count = mend(affected);
+    tight = null; // the prices have changed
+    return count;
+  }
+
+  // The components, prices and matching (see saveMatching) can be saved
+  // before a trial change, and restored once the old edges are back, so
+  // that the change is undone without a second repair.
+  int[] saveComponents() {
+    int[] components = new int[receivers.size()];
+    for (Vertex v : RECEIVERS) components[v.id] = v.component;
+    return components;
+  }
+  void restoreComponents(int[] components) {
+    // repair gives every component it touches a new label, so the
+    // vertices whose label differs are exactly the ones to rebuild
+    List<Vertex> changed = new ArrayList<Vertex>();
+    for (Vertex v : RECEIVERS) {
+      if (v.component == components[v.id]) continue;
+      v.component = v.twin.component = components[v.id];
+      changed.add(v);
+    }
+    for (Vertex v : changed) {
+      v.EDGES = sameComponent(v.edges);
+      v.twin.EDGES = sameComponent(v.twin.edges);
+    }
+    tight = null;
+  }
+
+  // by id, receivers first
+  long[] savePrices() {
+    int n = receivers.size();
+    long[] prices = new long[2*n];
+    for (Vertex v : RECEIVERS) {
+      prices[v.id] = v.price;
+      prices[n + v.twin.id] = v.twin.price;
+    }
+    return prices;
+  }
+  void restorePrices(long[] prices) {
+    int n = receivers.size();
+    for (Vertex v : RECEIVERS) {
+      v.price = prices[v.id];
+      v.twin.price = prices[n + v.twin.id];
+    }
+    tight = null;
+  }
+
+  // Restores feasibility after the EDGES of the given receivers have
+  // changed, by raising their prices where an edge has become too cheap
+  // and dropping every match that is gone or no longer tight, and then
+  // augments from the previous prices.  Returns the number of receivers
+  // that had to be matched again.
+  private int mend(List<Vertex> affected) {
+    dropInfeasible(affected);
+    unmatched.clear();
+    for (Vertex v : affected) {
+      if (v.match == null) unmatched.add(v);
+    }
+    int count = unmatched.size();
+    for (int remaining = count; remaining > 0; ) {
+      dijkstra();
+      assert sinkFrom != null;
+      updatePrices();
+      augment(sinkFrom);
+      remaining -= 1 + augmentTightPaths();
+    }
+    return count;
+  }
+
+  // the first half of mend; returns the number of matches dropped, whose
+  // receivers are added to unmatched
+  private int dropInfeasible(List<Vertex> affected) {
+    int dropped = 0;
+    for (Vertex v : affected) {
+      long price = v.price;
+      Edge matched = null;
+      for (Edge e : v.EDGES) {
+        price = Math.max(price, e.sender.price - e.cost);
+        if (e.sender == v.match) matched = e;
+      }
+      v.price = price;
+      if (v.match == null) continue;
+      if (matched != null && v.price + matched.cost == v.match.price)
+        v.matchCost = matched.cost;
+      else {
+        v.match.match = null;
+        v.match = null;
+        unmatched.add(v);
+        dropped++;
+      }
+    }
+    return dropped;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+  // Locality ordering: lays the vertices out so that items that want each
+  // other sit next to each other.  Each component is ordered by reverse
+  // Cuthill-McKee (breadth first from a vertex of least degree, visiting
+  // neighbours by increasing degree, then reversed), the components are
+  // placed one after another, and every edge list is sorted by position.
+  // The Vertex and Edge objects are then reallocated in that order, since
+  // objects allocated together end up next to each other on the heap.
+  // Afterwards ids are positions, and shuffle only redraws the tie keys.
+
+  boolean localityOrder = false;
+
+  private int degree(Vertex v) {
+    return v.EDGES.length + v.twin.EDGES.length;
+  }
+
+  // mean distance in RECEIVERS between an item and the items it wants
+  double meanEdgeSpan() {
+    return meanEdgeSpan(RECEIVERS);
+  }
+
+  private double meanEdgeSpan(Vertex[] order) {
+    int[] position = new int[receivers.size()];
+    for (int i = 0; i < order.length; i++) position[order[i].id] = i;
+    long sum = 0;
+    long count = 0;
+    for (int i = 0; i < order.length; i++) {
+      for (Edge e : order[i].EDGES) {
+        sum += Math.abs(position[e.sender.id] - i);
+        count++;
+      }
+    }
+    return count == 0 ? 0 : sum / (double)count;
+  }
+
+  void orderForLocality() {
+    assert frozen;
+    Map<Integer,List<Vertex>> components = new LinkedHashMap<Integer,List<Vertex>>();
+    for (Vertex v : RECEIVERS) {
+      List<Vertex> list = components.get(v.component);
+      if (list == null) components.put(v.component, list = new ArrayList<Vertex>());
+      list.add(v);
+    }
+
+    Comparator<Vertex> byDegree = (a, b) -> Integer.compare(degree(a), degree(b));
+    Vertex[] order = new Vertex[RECEIVERS.length];
+    int count = 0;
+    advanceTimestamp();
+    for (List<Vertex> component : components.values()) {
+      int start = count;
+      Vertex first = Collections.min(component, byDegree);
+      first.mark = timestamp;
+      order[count++] = first;
+      for (int i = start; i < count; i++) {
+        Vertex v = order[i];
+        List<Vertex> next = new ArrayList<Vertex>();
+        for (Edge e : v.EDGES) {
+          Vertex w = e.sender.twin;
+          if (w.mark != timestamp) { w.mark = timestamp; next.add(w); }
+        }
+        for (Edge e : v.twin.EDGES) {
+          Vertex w = e.receiver;
+          if (w.mark != timestamp) { w.mark = timestamp; next.add(w); }
+        }
+        Collections.sort(next, byDegree);
+        for (Vertex w : next) order[count++] = w;
+      }
+      assert count - start == component.size();
+      Collections.reverse(Arrays.asList(order).subList(start, count));
+    }
+
+    // the grouping alone sometimes beats it, on inputs that list related
+    // items near each other
+    Vertex[] grouped = new Vertex[RECEIVERS.length];
+    count = 0;
+    for (List<Vertex> component : components.values()) {
+      for (Vertex v : component) grouped[count++] = v;
+    }
+    if (meanEdgeSpan(grouped) < meanEdgeSpan(order)) order = grouped;
+
+    relayout(order);
+    localityOrder = true;
+  }
+
+  private Vertex copy(Vertex v) {
+    Vertex c = new Vertex(v.name, v.user, v.isDummy, v.type);
+    c.minimumInCost = v.minimumInCost;
+    c.component = v.component;
+    c.userId = v.userId;
+    return c;
+  }
+
+  // reallocates the active vertices and their edges in the given order
+  private void relayout(Vertex[] order) {
+    Vertex[] byOldId = new Vertex[receivers.size()];
+    Vertex[] newReceivers = new Vertex[order.length];
+    Vertex[] newSenders = new Vertex[order.length];
+    for (int i = 0; i < order.length; i++) {
+      Vertex receiver = copy(order[i]);
+      Vertex sender = copy(order[i].twin);
+      receiver.twin = sender;
+      sender.twin = receiver;
+      byOldId[order[i].id] = receiver;
+      newReceivers[i] = receiver;
+      newSenders[i] = sender;
+    }
+
+    for (int i = 0; i < order.length; i++) {
+      Edge[] edges = order[i].EDGES.clone();
+      Arrays.sort(edges, (a, b) -> Integer.compare(byOldId[a.sender.id].id,
+                                                   byOldId[b.sender.id].id));
+      Vertex receiver = newReceivers[i];
+      for (Edge e : edges) {
+        Vertex sender = byOldId[e.sender.id].twin;
+        Edge edge = new Edge(receiver, sender, e.cost);
+        receiver.edges.add(edge);
+        sender.edges.add(edge);
+      }
+    }
+    Edge[] tmp = new Edge[0];
+    for (int i = 0; i < order.length; i++) {
+      newReceivers[i].EDGES = newReceivers[i].edges.toArray(tmp);
+      newSenders[i].EDGES = newSenders[i].edges.toArray(tmp);
+      newReceivers[i].id = newSenders[i].id = i;
+      nameMap.put(newReceivers[i].name, newReceivers[i]);
+    }
+
+    // orphans keep their objects, and their ids move past the active ones
+    receivers = new ArrayList<Vertex>(Arrays.asList(newReceivers));
+    senders = new ArrayList<Vertex>(Arrays.asList(newSenders));
+    for (Vertex v : orphans) {
+      v.id = v.twin.id = receivers.size();
+      receivers.add(v);
+      senders.add(v.twin);
+    }
+    RECEIVERS = newReceivers;
+    SENDERS = newSenders;
+  }
+
   //////////////////////////////////////////////////////////////////////
 
   Vertex sinkFrom;
@@ -233,59 +651,442 @@ public class Graph {
 
   static final long INFINITY = 100000000000000L; // 10^14
 
+  // Vertices settled by the last dijkstra call, in the order they were
+  // extracted.  Only these need their prices updated afterwards.
+  private List<Vertex> settled = new ArrayList<Vertex>();
+
+  // Receivers that might still be unmatched.  Matched receivers are
+  // dropped lazily at the start of each dijkstra call.
+  private List<Vertex> unmatched = new ArrayList<Vertex>();
+
+  // Vertices are only inserted into the heap when they are first reached,
+  // and the search stops as soon as the cheapest unmatched sender is
+  // extracted, so a round costs time proportional to the part of the graph
+  // it actually explores.  A vertex has been reached in this round iff its
+  // mark equals the current timestamp.
   void dijkstra() {
+    if (pool != null) {
+      deltaStepping();
+      return;
+    }
     sinkFrom = null;
     sinkCost = Long.MAX_VALUE;
-    
+    settled.clear();
+    advanceTimestamp();
+
     Heap heap = new Heap();
-    for (Vertex v : SENDERS) {
-      v.from = null;
-      v.heapEntry = heap.insert(v, INFINITY);
-    }
-    for (Vertex v : RECEIVERS) {
-      v.from = null;
-      long cost = v.match == null ? 0 : INFINITY;
-      v.heapEntry = heap.insert(v, cost);
+    int count = 0;
+    for (Vertex v : unmatched) {
+      if (v.match != null) continue;
+      unmatched.set(count++, v);
+      reach(heap, v, null, 0);
     }
+    unmatched.subList(count, unmatched.size()).clear();
 
     while (!heap.isEmpty()) {
       Heap.Entry minEntry = heap.extractMin();
       Vertex vertex = minEntry.vertex();
       long cost = minEntry.cost();
-      if (cost == INFINITY) break; // everything left is unreachable
+      vertex.dist = cost;
+      settled.add(vertex);
       if (vertex.type == VertexType.RECEIVER) {
-        for (Edge e : vertex.EDGES) {
+        Edge[] edges = vertex.EDGES;
+        int first = firstEdge(vertex);
+        for (int k = first; k < first + edges.length; k++) {
+          Edge e = edges[k < edges.length ? k : k - edges.length];
           Vertex other = e.sender;
           if (other == vertex.match) continue;
           long c = vertex.price + e.cost - other.price;
           assert c >= 0;
-          if (cost + c < other.heapEntry.cost()) {
-            other.heapEntry.decreaseCost(cost + c);
-            other.from = vertex;
-          }
+          reach(heap, other, vertex, cost + c);
         }
       }
       else if (vertex.match == null) { // unmatched sender
-        if (cost < sinkCost) {
-          sinkFrom = vertex;
-          sinkCost = cost;
-        }
+        sinkFrom = vertex;
+        sinkCost = cost;
+        break;
       }
       else { // matched sender
         Vertex other = vertex.match;
         long c = vertex.price - other.matchCost - other.price;
         assert c >= 0;
-        if (cost + c < other.heapEntry.cost()) {
-          other.heapEntry.decreaseCost(cost + c);
-          other.from = vertex;
+        reach(heap, other, vertex, cost + c);
+      }
+    }
+  }
+
+  private void reach(Heap heap, Vertex v, Vertex from, long cost) {
+    if (v.mark != timestamp) {
+      v.mark = timestamp;
+      v.from = from;
+      v.heapEntry = heap.insert(v, cost);
+    }
+    else if (cost < v.heapEntry.cost()) {
+      v.heapEntry.decreaseCost(cost);
+      v.from = from;
+    }
+  }
+
+  // Adds min(dist,sinkCost) - sinkCost to every price.  Subtracting the
+  // same constant from all prices leaves the reduced costs unchanged, and
+  // vertices that were not settled before the sink have dist >= sinkCost,
+  // so only the settled vertices actually change.
+  void updatePrices() {
+    for (Vertex v : settled) v.price += Math.min(v.dist,sinkCost) - sinkCost;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+  // Delta-stepping: a bucketed version of dijkstra whose relaxations run
+  // in parallel.  Vertices are kept in buckets of width delta according to
+  // their tentative distance.  The current bucket is emptied by repeatedly
+  // relaxing the light edges (reduced cost <= delta) of its vertices, and
+  // only then are the heavy edges of everything settled in it relaxed.
+  // The distances, sinkCost and the settled set agree with dijkstra; ties
+  // between equally cheap unmatched senders go to the one with the lower
+  // tie key under RANDOM-TIES or LOCALITY-ORDER and to the lower id
+  // otherwise, and equally short paths may be recorded with different
+  // from links.
+
+  private ForkJoinPool pool = null;
+  private long delta = 0;
+
+  // below this many vertices a frontier is not worth splitting up
+  static final int PARALLEL_FRONTIER = 256;
+
+  // one pool per thread count for the life of the process, since the web
+  // server builds a graph for every request
+  private static final Map<Integer,ForkJoinPool> POOLS = new HashMap<Integer,ForkJoinPool>();
+
+  void setThreads(int threads) {
+    if (threads <= 1) {
+      pool = null;
+      return;
+    }
+    synchronized (POOLS) {
+      pool = POOLS.get(threads);
+      if (pool == null) POOLS.put(threads, pool = new ForkJoinPool(threads));
+    }
+  }
+
+  // The bucket width is the mean cost of the ordinary trade edges, which
+  // is a handful of units for the usual priority schemes.  Non-trade edges
+  // and edges out of dummies all cost the same large amount and are left
+  // out so that they do not drown the average.
+  private long bucketWidth() {
+    long sum = 0;
+    long count = 0;
+    for (Vertex v : RECEIVERS) {
+      if (v.isDummy) continue;
+      for (Edge e : v.EDGES) {
+        if (e.sender == v.twin) continue;
+        sum += e.cost;
+        count++;
+      }
+    }
+    return count == 0 ? 1 : Math.max(1, sum/count);
+  }
+
+  private boolean lower(Vertex v, Vertex from, long cost) {
+    synchronized (v) {
+      if (v.mark != timestamp) v.mark = timestamp;
+      else if (cost >= v.dist) return false;
+      v.dist = cost;
+      v.from = from;
+      return true;
+    }
+  }
+
+  // relaxes the light or the heavy edges out of vertex, adding every vertex
+  // whose distance drops to improved
+  private void relax(Vertex vertex, boolean light, Queue<Vertex> improved) {
+    long cost;
+    synchronized (vertex) { // lower() may be writing it from another thread
+      cost = vertex.dist;
+    }
+    if (vertex.type == VertexType.RECEIVER) {
+      for (Edge e : vertex.EDGES) {
+        Vertex other = e.sender;
+        if (other == vertex.match) continue;
+        long c = vertex.price + e.cost - other.price;
+        assert c >= 0;
+        if ((c <= delta) == light && lower(other, vertex, cost + c))
+          improved.add(other);
+      }
+    }
+    else if (vertex.match != null) {
+      Vertex other = vertex.match;
+      long c = vertex.price - other.matchCost - other.price;
+      assert c >= 0;
+      if ((c <= delta) == light && lower(other, vertex, cost + c))
+        improved.add(other);
+    }
+  }
+
+  private void relaxAll(Collection<Vertex> frontier, boolean light,
+                        Queue<Vertex> improved) {
+    if (frontier.size() < PARALLEL_FRONTIER) {
+      for (Vertex v : frontier) relax(v, light, improved);
+      return;
+    }
+    pool.submit(() -> frontier.parallelStream()
+                              .forEach(v -> relax(v, light, improved))).join();
+  }
+
+  private void deltaStepping() {
+    sinkFrom = null;
+    sinkCost = Long.MAX_VALUE;
+    settled.clear();
+    advanceTimestamp();
+    if (delta == 0) delta = bucketWidth();
+
+    TreeMap<Long,List<Vertex>> buckets = new TreeMap<Long,List<Vertex>>();
+    Queue<Vertex> improved = new ConcurrentLinkedQueue<Vertex>();
+    int count = 0;
+    for (Vertex v : unmatched) {
+      if (v.match != null) continue;
+      unmatched.set(count++, v);
+      lower(v, null, 0);
+      improved.add(v);
+    }
+    unmatched.subList(count, unmatched.size()).clear();
+    fill(buckets, improved);
+
+    while (!buckets.isEmpty()) {
+      long index = buckets.firstKey();
+      Set<Vertex> bucketSettled = new LinkedHashSet<Vertex>();
+      while (buckets.containsKey(index)) {
+        Set<Vertex> frontier = new LinkedHashSet<Vertex>();
+        for (Vertex v : buckets.remove(index)) {
+          if (v.dist / delta == index) frontier.add(v); // skip stale copies
         }
+        bucketSettled.addAll(frontier);
+        relaxAll(frontier, true, improved);
+        fill(buckets, improved);
       }
+      relaxAll(bucketSettled, false, improved);
+      fill(buckets, improved);
+
+      for (Vertex v : bucketSettled) {
+        settled.add(v);
+        if (v.type == VertexType.SENDER && v.match == null &&
+            (v.dist < sinkCost || v.dist == sinkCost && before(v, sinkFrom))) {
+          sinkFrom = v;
+          sinkCost = v.dist;
+        }
+      }
+      if (sinkFrom != null) break;
     }
-  } // end dijkstra
+  }
 
-  List<List<Vertex>> findCycles() {
-    assert frozen;
-  
+  private boolean before(Vertex a, Vertex b) {
+    if (tiesOnly() && a.tie != b.tie) return a.tie < b.tie;
+    return a.id < b.id;
+  }
+
+  private void fill(TreeMap<Long,List<Vertex>> buckets, Queue<Vertex> improved) {
+    for (Vertex v = improved.poll(); v != null; v = improved.poll()) {
+      long index = v.dist / delta;
+      List<Vertex> bucket = buckets.get(index);
+      if (bucket == null) buckets.put(index, bucket = new ArrayList<Vertex>());
+      bucket.add(v);
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  // Matches as many receivers as possible along tight edges, i.e. edges
+  // whose cost equals the sender's minimumInCost.  With the initial prices
+  // (0 for receivers, minimumInCost for senders) these edges have reduced
+  // cost zero, so the resulting matching is already consistent with the
+  // prices and dijkstra only has to run for the receivers left unmatched.
+  // Returns the number of receivers matched.
+  int greedyMatch() {
+    int matched = 0;
+    for (int i = 0; i < RECEIVERS.length; i++) {
+      Vertex receiver = walk(i);
+      if (receiver.match != null) continue;
+      Edge best = null;
+      for (Edge e : receiver.EDGES) {
+        Vertex sender = e.sender;
+        if (sender.match == null && e.cost == sender.price &&
+            (best == null || sender.tie < best.sender.tie)) {
+          best = e;
+          if (!tiesOnly()) break; // the edge order is already random
+        }
+      }
+      if (best != null) {
+        receiver.match = best.sender;
+        receiver.matchCost = best.cost;
+        best.sender.match = receiver;
+        matched++;
+      }
+    }
+    return matched;
+  }
+
+  // Flips the matching along the path that ends at the given unmatched
+  // sender and leads back through the from links to an unmatched receiver.
+  void augment(Vertex sender) {
+    while (sender != null) {
+      Vertex receiver = sender.from;
+
+      // unlink sender and receiver from current matches
+      if (sender.match != null) sender.match.match = null;
+      if (receiver.match != null) receiver.match.match = null;
+
+      sender.match = receiver;
+      receiver.match = sender;
+
+      // update matchCost
+      for (Edge e : receiver.EDGES) {
+        if (e.sender == sender) {
+          receiver.matchCost = e.cost;
+          break;
+        }
+      }
+
+      sender = receiver.from;
+    }
+  }
+
+  private Vertex[] pathStack;
+  private int[] pathEdge;
+  private int[] pathEnd;
+
+  // Looks for further augmenting paths that use only edges of zero reduced
+  // cost under the current prices, and augments along each one found.
+  // Every vertex is visited at most once per call, so the paths are vertex
+  // disjoint and each stays tight while the others are flipped.  Returns
+  // the number of augmentations.
+  int augmentTightPaths() { return augmentTightPaths(false); }
+
+  // When layered is set, only trade edges are used and every step must go
+  // one layer deeper, as in the phases of Hopcroft-Karp.
+  private int augmentTightPaths(boolean layered) {
+    if (pathStack == null || pathStack.length < RECEIVERS.length) {
+      pathStack = new Vertex[RECEIVERS.length];
+      pathEdge = new int[RECEIVERS.length];
+      pathEnd = new int[RECEIVERS.length];
+    }
+    advanceTimestamp();
+    int count = 0;
+    for (Vertex root : unmatched) {
+      if (root.match != null || root.mark == timestamp) continue;
+      Vertex sender = searchTightPath(root, layered);
+      if (sender != null) {
+        augment(sender);
+        count++;
+      }
+    }
+    return count;
+  }
+
+  // where a scan of the edges out of receiver starts, which is given by
+  // its tie key when ties are random; the scan wraps around from there
+  int firstEdge(Vertex receiver) {
+    int n = receiver.EDGES.length;
+    return tiesOnly() && n > 0 ? Math.floorMod(receiver.tie, n) : 0;
+  }
+
+  // iterative depth-first search, since the paths can be very long
+  private Vertex searchTightPath(Vertex root, boolean layered) {
+    root.mark = timestamp;
+    root.from = null;
+    int depth = 0;
+    pathStack[0] = root;
+    pathEdge[0] = firstEdge(root);
+    pathEnd[0] = pathEdge[0] + root.EDGES.length;
+    while (depth >= 0) {
+      Vertex receiver = pathStack[depth];
+      if (pathEdge[depth] == pathEnd[depth]) {
+        depth--;
+        continue;
+      }
+      int k = pathEdge[depth]++;
+      int n = receiver.EDGES.length;
+      Edge e = receiver.EDGES[k < n ? k : k - n];
+      Vertex sender = e.sender;
+      if (sender == receiver.match || sender.mark == timestamp) continue;
+      if (!(layered && ignoreCosts) && receiver.price + e.cost != sender.price) continue;
+      Vertex next = sender.match;
+      if (layered && (!isTradeEdge(e) ||
+                      next != null && next.layer != receiver.layer+1))
+        continue;
+      sender.mark = timestamp;
+      sender.from = receiver;
+      if (next == null) return sender;
+
+      // matched edges are always tight, so continue with sender's receiver
+      if (next.mark == timestamp) continue;
+      next.mark = timestamp;
+      next.from = sender;
+      depth++;
+      pathStack[depth] = next;
+      pathEdge[depth] = firstEdge(next);
+      pathEnd[depth] = pathEdge[depth] + next.EDGES.length;
+    }
+    return null;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  // Set when every trade edge costs the same, as with NO_PRIORITIES.  Then
+  // all trade edges out of real items are tight from the start, and a
+  // maximum matching over them is a much better seed than greedyMatch.
+  boolean unitCosts = false;
+
+  private boolean isTradeEdge(Edge e) {
+    return !e.receiver.isDummy && e.sender != e.receiver.twin;
+  }
+
+  private List<Vertex> layered = new ArrayList<Vertex>();
+
+  // Breadth-first search from the unmatched receivers over tight trade
+  // edges, numbering the matched receivers by layer.  Stops after the first
+  // layer that reaches an unmatched sender, and reports whether it did.
+  private boolean layerTradeEdges() {
+    for (Vertex v : layered) v.layer = -1;
+    layered.clear();
+    for (Vertex v : unmatched) {
+      if (v.match != null) continue;
+      v.layer = 0;
+      layered.add(v);
+    }
+    int lastLayer = Integer.MAX_VALUE;
+    for (int i = 0; i < layered.size(); i++) {
+      Vertex receiver = layered.get(i);
+      if (receiver.layer >= lastLayer) break;
+      for (Edge e : receiver.EDGES) {
+        Vertex sender = e.sender;
+        if (sender == receiver.match || !isTradeEdge(e) ||
+            !ignoreCosts && receiver.price + e.cost != sender.price) continue;
+        Vertex next = sender.match;
+        if (next == null) lastLayer = receiver.layer + 1;
+        else if (next.layer < 0) {
+          next.layer = receiver.layer + 1;
+          layered.add(next);
+        }
+      }
+    }
+    return lastLayer != Integer.MAX_VALUE;
+  }
+
+  // Hopcroft-Karp over the tight trade edges: each phase layers the graph
+  // and then augments along a maximal set of disjoint shortest paths, for
+  // O(E sqrt(V)) in total.  Returns the number of receivers matched.
+  int hopcroftKarp() {
+    int matched = 0;
+    while (layerTradeEdges()) {
+      int found = augmentTightPaths(true);
+      if (found == 0) break;
+      matched += found;
+    }
+    for (Vertex v : layered) v.layer = -1;
+    layered.clear();
+    return matched;
+  }
+
+  private void resetMatching() {
     for (Vertex v : RECEIVERS) {
       v.match = null;
       v.price = 0;
@@ -294,57 +1095,494 @@ public class Graph {
       v.match = null;
       v.price = v.minimumInCost;
     }
+    unmatched.clear();
+    for (int i = 0; i < RECEIVERS.length; i++) unmatched.add(walk(i));
+  }
 
-    for (int round = 0; round < RECEIVERS.length; round++) {
-      dijkstra();
+  // The size of a maximum matching between real items and the items they
+  // want.  Every solution is such a matching once dummies are elided, so
+  // this bounds the number of trades from above.  Clobbers the current
+  // matching.
+  int maximumTrades() {
+    assert frozen;
+    resetMatching();
+    ignoreCosts = true;
+    int trades = hopcroftKarp();
+    ignoreCosts = false;
+    return trades;
+  }
 
-      // update the matching
-      Vertex sender = sinkFrom;
-      assert sender != null;
-      while (sender != null) {
-        Vertex receiver = sender.from;
+  // set while maximumTrades treats every trade edge as tight
+  private boolean ignoreCosts = false;
 
-        // unlink sender and receiver from current matches
-        if (sender.match != null) sender.match.match = null;
-        if (receiver.match != null) receiver.match.match = null;
+  //////////////////////////////////////////////////////////////////////
+  // Top trading cycles, for PREVIEW: a fast approximation that does not
+  // try to maximize the number of trades.  Every item points at the first
+  // item it wants that is still there, the cycles this forms trade and
+  // leave, and an item whose wants have all left leaves without trading.
+  // Wants are taken cheapest first.  Pointers only move forward, so this
+  // is linear in the number of edges.  The matching is complete but no
+  // prices are set, so it is only good for collectCycles and elideDummies.
 
-        sender.match = receiver;
-        receiver.match = sender;
+  void topTradingCycles() {
+    int n = receivers.size();
+    Edge[][] wants = new Edge[n][];
+    for (Vertex v : RECEIVERS) {
+      List<Edge> list = new ArrayList<Edge>(v.EDGES.length);
+      for (Edge e : v.EDGES) {
+        if (e.sender != v.twin) list.add(e);
+      }
+      Collections.sort(list, (a, b) -> Long.compare(a.cost, b.cost)); // stable
+      wants[v.id] = list.toArray(new Edge[0]);
+    }
+
+    boolean[] gone = new boolean[n];
+    boolean[] onPath = new boolean[n];
+    int[] next = new int[n];
+    Vertex[] path = new Vertex[RECEIVERS.length];
+    for (int i = 0; i < RECEIVERS.length; i++) {
+      Vertex start = walk(i);
+      if (gone[start.id]) continue;
+      int depth = 0;
+      path[depth++] = start;
+      onPath[start.id] = true;
+      while (depth > 0) {
+        Vertex v = path[depth-1];
+        Edge[] list = wants[v.id];
+        while (next[v.id] < list.length && gone[list[next[v.id]].sender.id]) next[v.id]++;
 
-        // update matchCost
-        for (Edge e : receiver.EDGES) {
-          if (e.sender == sender) {
-            receiver.matchCost = e.cost;
-            break;
+        if (next[v.id] == list.length) { // nothing left that v wants
+          for (Edge e : v.EDGES) {
+            if (e.sender == v.twin) link(v, e);
           }
+          gone[v.id] = true;
+          onPath[v.id] = false;
+          depth--;
+          continue;
+        }
+        Vertex w = list[next[v.id]].sender.twin;
+        if (!onPath[w.id]) {
+          path[depth++] = w;
+          onPath[w.id] = true;
+          continue;
         }
 
-        sender = receiver.from;
+        // the path from w up to v closes a cycle
+        Vertex u;
+        do {
+          u = path[--depth];
+          link(u, wants[u.id][next[u.id]]);
+          gone[u.id] = true;
+          onPath[u.id] = false;
+        } while (u != w);
       }
+    }
+    tight = null;
+  }
+
+  private void link(Vertex receiver, Edge e) {
+    receiver.match = e.sender;
+    receiver.matchCost = e.cost;
+    e.sender.match = receiver;
+  }
+
+  // Set to solve over classes of interchangeable items instead, see
+  // CompressedSolver.  Too many classes and the other solvers are used.
+  boolean compressItems = false;
+  int itemClasses = 0; // number of classes found in the last solve
+  boolean itemsCompressed = false; // whether the last solve used them
+
+  List<List<Vertex>> findCycles() {
+    solveMatching();
+    return collectCycles();
+  } // end findCycles
 
-      // update the prices
-      for (Vertex v : RECEIVERS) v.price += v.heapEntry.cost();
-      for (Vertex v : SENDERS)   v.price += v.heapEntry.cost();
+  void solveMatching() {
+    assert frozen;
+
+    if (componentCache != null) solveCached();
+    else solveUncached();
+    tight = null; // the prices have changed
+  }
+
+  private void solveUncached() {
+    if (compressItems && (itemsCompressed = new CompressedSolver(this).solve()))
+      return;
+    if (sparsify > 0) solveSparse();
+    else if (!intCosts || !solveInt()) solve();
+  }
+
+  // INT-COSTS: solve with 32-bit costs where they fit (see IntSolver).
+  // The prices of one graph need about the same range every time, so
+  // after one overflow the long version is used from then on.
+  boolean intCosts = false;
+  int intFallbacks = 0; // solves that had to use the long version
+
+  private boolean solveInt() {
+    if (intFallbacks == 0 && IntSolver.fits(this) && new IntSolver(this).solve())
+      return true;
+    intFallbacks++;
+    return false;
+  }
+
+  void solve() {
+    augmentAll(initialMatching() + greedyMatch());
+  }
+
+  // the starting prices, and the Hopcroft-Karp matching for unit costs;
+  // returns the number of receivers matched
+  int initialMatching() {
+    resetMatching();
+    return unitCosts ? hopcroftKarp() : 0;
+  }
+
+  // CACHE-COMPONENTS: the components in the cache are put back, and the
+  // others are solved on their own by whichever solver the options choose.
+  // No edge joins two components, so the solver is simply given the
+  // receivers and senders of the missed ones (see ComponentCache).
+  ComponentCache componentCache = null;
+  int cacheHits; // of the last cached solve, for VERBOSE
+  int cacheComponents;
+
+  private void solveCached() {
+    ComponentCache.Misses misses = componentCache.restore(this);
+    cacheHits = misses.hits;
+    cacheComponents = misses.components;
+
+    Vertex[] receivers = RECEIVERS;
+    Vertex[] senders = SENDERS;
+    int start = walkStart;
+    int stride = walkStride;
+    RECEIVERS = misses.receivers(this);
+    SENDERS = new Vertex[RECEIVERS.length];
+    for (int i = 0; i < RECEIVERS.length; i++) SENDERS[i] = RECEIVERS[i].twin;
+    walkStart = 0; // a stride of the whole graph may not cover the part
+    walkStride = 1;
+    try {
+      if (RECEIVERS.length > 0) solveUncached();
+    }
+    finally {
+      RECEIVERS = receivers;
+      SENDERS = senders;
+      walkStart = start;
+      walkStride = stride;
+    }
+    componentCache.store(misses);
+  }
+
+  private void augmentAll(int matched) {
+    // Each phase runs one dijkstra, which makes at least the path to
+    // sinkFrom tight, and then augments along as many further disjoint
+    // tight paths as it can find before searching again.
+    while (matched < RECEIVERS.length) {
+      dijkstra();
+      assert sinkFrom != null;
+      updatePrices();
+      augment(sinkFrom);
+      matched += 1 + augmentTightPaths();
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////
+  // SPARSIFY=k: most wants can never be in an optimal matching, so solve
+  // with only the k cheapest wants of each item (and its no-trade edge),
+  // and add the others as they are needed.  updatePrices only ever lowers
+  // prices, and only those of the vertices a phase settled short of the
+  // sink, so only the wants left aside by the receivers among them can
+  // have become violated, that is, have a negative reduced cost.  Those wants are added after each phase
+  // and their receivers made feasible again as in mend, and the next phase
+  // goes on from the current prices.  The matching ends up perfect with no
+  // want violated, which makes it optimal with all the edges.  When most
+  // items are violated at once, every edge is put back and the phases go
+  // on as usual, so k should be large enough that most items trade within
+  // their first k wants.
+
+  int sparsify = 0;
+  int sparseEdges; // edges in the final sparse graph, for VERBOSE
+  int sparseRounds; // phases that added wants
+
+  void solveSparse() {
+    Edge[][] all = new Edge[receivers.size()][];
+    sparseEdges = 0;
+    for (Vertex v : RECEIVERS) {
+      all[v.id] = v.EDGES;
+      v.EDGES = cheapest(v, sparsify);
+      sparseEdges += v.EDGES.length;
+    }
+    sparseRounds = 0;
+    boolean sparse = true;
+    List<Vertex> violated = new ArrayList<Vertex>();
+    int matched = initialMatching() + greedyMatch();
+    while (matched < RECEIVERS.length) {
+      dijkstra();
+      assert sinkFrom != null;
+      updatePrices();
+      augment(sinkFrom);
+      matched += 1 + augmentTightPaths();
+      if (!sparse) continue;
+
+      violated.clear();
+      for (Vertex v : settled) {
+        if (v.type != VertexType.RECEIVER || v.dist >= sinkCost) continue;
+        Edge[] edges = addViolated(v, all[v.id]);
+        if (edges == v.EDGES) continue;
+        sparseEdges += edges.length - v.EDGES.length;
+        v.EDGES = edges;
+        violated.add(v);
+      }
+      if (violated.isEmpty()) continue;
+      sparseRounds++;
+      if (violated.size() > RECEIVERS.length / 2) {
+        // too far off to be worth adding piecemeal
+        sparse = false;
+        violated.clear();
+        sparseEdges = 0;
+        for (Vertex v : RECEIVERS) {
+          v.EDGES = all[v.id];
+          sparseEdges += v.EDGES.length;
+          violated.add(v);
+        }
+      }
+      matched -= dropInfeasible(violated);
+    }
+
+    for (Vertex v : RECEIVERS) v.EDGES = all[v.id];
+  }
+
+  // the k cheapest edges out of v and the edge to its twin, in their order
+  private Edge[] cheapest(Vertex v, int k) {
+    if (v.EDGES.length <= k+1) return v.EDGES;
+    long[] costs = new long[v.EDGES.length];
+    int n = 0;
+    for (Edge e : v.EDGES) {
+      if (e.sender != v.twin) costs[n++] = e.cost;
     }
+    Arrays.sort(costs, 0, n);
+    long limit = costs[k-1];
+    int atLimit = 0; // how many edges costing exactly limit to keep
+    for (int i = k-1; i >= 0 && costs[i] == limit; i--) atLimit++;
 
-    elideDummies();
+    Edge[] edges = new Edge[k+1];
+    n = 0;
+    for (Edge e : v.EDGES) {
+      if (e.sender == v.twin || e.cost < limit) edges[n++] = e;
+      else if (e.cost == limit && atLimit > 0) {
+        edges[n++] = e;
+        atLimit--;
+      }
+    }
+    return n == edges.length ? edges : Arrays.copyOf(edges, n);
+  }
+
+  // The edges of v together with those in all that have a negative reduced
+  // cost, in the order of all; v.EDGES itself if there are none.  v.EDGES
+  // is always a subsequence of all.
+  private Edge[] addViolated(Vertex v, Edge[] all) {
+    int extra = 0;
+    for (Edge e : all) {
+      if (v.price + e.cost < e.sender.price) extra++;
+    }
+    if (extra == 0) return v.EDGES;
+    Edge[] edges = new Edge[v.EDGES.length + extra];
+    int n = 0;
+    int p = 0;
+    for (Edge e : all) {
+      if (p < v.EDGES.length && v.EDGES[p] == e) {
+        edges[n++] = e;
+        p++;
+      }
+      else if (v.price + e.cost < e.sender.price) edges[n++] = e;
+    }
+    return edges;
+  }
+
+  // The cycles of the current matching, without building any lists: the
+  // trading items in cycle order and the size of each cycle, in buffers
+  // that are reused from one walkCycles to the next.  Metrics are
+  // calculated from these, so an iteration allocates nothing.
+  static class Cycles {
+    Graph graph;
+    Vertex[] items = new Vertex[0];
+    int[] sizes = new int[0];
+    int count = 0; // number of cycles
+    int trades = 0; // number of items in them
+  }
+
+  // Walks the cycles, passing over dummies without changing the matching,
+  // so that it stays tight for exploreTight.  elideDummies does the same
+  // to the matching itself, for display.
+  void walkCycles(Cycles cycles) {
+    walkCycles(cycles, RECEIVERS);
+  }
+  // the cycles start from the receivers in the given order
+  void walkCycles(Cycles cycles, Vertex[] order) {
+    if (cycles.items.length < RECEIVERS.length) {
+      cycles.items = new Vertex[RECEIVERS.length];
+      cycles.sizes = new int[RECEIVERS.length];
+    }
+    cycles.graph = this;
+    cycles.count = 0;
+    cycles.trades = 0;
     advanceTimestamp();
-    List<List<Vertex>> cycles = new ArrayList<List<Vertex>>();
-    
-    for (Vertex vertex : RECEIVERS) {
-      if (vertex.mark == timestamp || vertex.match == vertex.twin) continue;
 
-      List<Vertex> cycle = new ArrayList<Vertex>();
+    for (Vertex vertex : order) {
+      if (vertex.mark == timestamp || vertex.isDummy) continue;
+
+      int start = cycles.trades;
       Vertex v = vertex;
       while (v.mark != timestamp) {
         v.mark = timestamp;
-        cycle.add(v);
+        cycles.items[cycles.trades++] = v;
         v = v.match.twin;
+        while (v.isDummy) v = v.match.twin;
       }
-      cycles.add(cycle);
+      if (cycles.trades - start > 1)
+        cycles.sizes[cycles.count++] = cycles.trades - start;
+      else
+        cycles.trades = start; // it does not trade
+    }
+  }
+
+  List<List<Vertex>> collectCycles() {
+    return collectCycles(RECEIVERS);
+  }
+  List<List<Vertex>> collectCycles(Vertex[] order) {
+    Cycles walked = new Cycles();
+    walkCycles(walked, order);
+    List<List<Vertex>> cycles = new ArrayList<List<Vertex>>();
+    int start = 0;
+    for (int i = 0; i < walked.count; i++) {
+      int end = start + walked.sizes[i];
+      cycles.add(new ArrayList<Vertex>(Arrays.asList(walked.items).subList(start, end)));
+      start = end;
     }
     return cycles;
-  } // end findCycles
+  }
+
+  //////////////////////////////////////////////////////////////////////
+  // Exploring other optimal matchings.  With the prices left by solve,
+  // the min-cost matchings are exactly the perfect matchings that use only
+  // tight edges, and any two of them differ by alternating cycles of tight
+  // edges.  Swapping along such a cycle therefore moves from one optimal
+  // matching to another without solving again.
+
+  private Edge[][] tight; // by receiver id, null for forced receivers
+  private Vertex[] free; // receivers that are not forced
+
+  private boolean isTight(Edge e) {
+    return e.receiver.price + e.cost == e.sender.price;
+  }
+
+  // An item with a single tight edge is forced to take that sender in
+  // every optimal matching, so tight edges from other items into that
+  // sender can never be used, which may force further items in turn.
+  // What remains is the part of the tight graph that cycles can use,
+  // where every item has its match plus at least one alternative.
+  private void findTightCore() {
+    int n = receivers.size();
+    tight = new Edge[n][];
+    int[] degree = new int[n];
+    boolean[] forced = new boolean[n]; // by sender id
+    int[] queue = new int[n];
+    int head = 0;
+    int tail = 0;
+    for (Vertex r : RECEIVERS) {
+      List<Edge> edges = new ArrayList<Edge>();
+      for (Edge e : r.EDGES) {
+        if (isTight(e)) edges.add(e);
+      }
+      tight[r.id] = edges.toArray(new Edge[0]);
+      degree[r.id] = edges.size();
+      if (degree[r.id] == 1) queue[tail++] = r.id;
+    }
+    while (head < tail) {
+      Vertex r = receivers.get(queue[head++]);
+      Vertex s = r.match; // its one remaining tight edge
+      forced[s.id] = true;
+      for (Edge e : s.EDGES) {
+        if (e.receiver == r || !isTight(e)) continue;
+        if (--degree[e.receiver.id] == 1) queue[tail++] = e.receiver.id;
+      }
+    }
+
+    List<Vertex> list = new ArrayList<Vertex>();
+    for (Vertex r : RECEIVERS) {
+      if (degree[r.id] < 2) {
+        tight[r.id] = null;
+        continue;
+      }
+      List<Edge> edges = new ArrayList<Edge>();
+      for (Edge e : tight[r.id]) {
+        if (!forced[e.sender.id]) edges.add(e);
+      }
+      tight[r.id] = edges.toArray(new Edge[0]);
+      list.add(r);
+    }
+    free = list.toArray(new Vertex[0]);
+  }
+
+  // a random tight edge out of receiver, other than its match
+  private Edge randomTightEdge(Vertex receiver) {
+    Edge[] edges = tight[receiver.id];
+    Edge e = edges[random.nextInt(edges.length - 1)];
+    return e.sender == receiver.match ? edges[edges.length - 1] : e;
+  }
+
+  // Walks from a random free item, each step taking a random tight edge
+  // to a sender and moving on to the item currently receiving that
+  // sender, until the walk closes on itself.  Within the tight core this
+  // never gets stuck.  The closed part is then swapped.  Returns the
+  // number of items that changed match, 0 if every item is forced.
+  int swapTightCycle() {
+    if (tight == null) findTightCore();
+    if (free.length == 0) return 0;
+
+    List<Vertex> walk = new ArrayList<Vertex>();
+    List<Edge> taken = new ArrayList<Edge>();
+    advanceTimestamp();
+    Vertex v = free[random.nextInt(free.length)];
+    while (v.mark != timestamp) {
+      Edge e = randomTightEdge(v);
+      v.mark = timestamp;
+      walk.add(v);
+      taken.add(e);
+      v = e.sender.match;
+    }
+
+    int start = walk.indexOf(v);
+    int size = taken.size() - start;
+    undoReceiver = new Vertex[size];
+    undoSender = new Vertex[size];
+    undoCost = new long[size];
+    for (Edge e : taken.subList(start, taken.size())) {
+      size--;
+      undoReceiver[size] = e.receiver;
+      undoSender[size] = e.receiver.match;
+      undoCost[size] = e.receiver.matchCost;
+      e.receiver.match = e.sender;
+      e.receiver.matchCost = e.cost;
+      e.sender.match = e.receiver;
+    }
+    return taken.size() - start;
+  }
+
+  // the matches replaced by the last swap
+  private Vertex[] undoReceiver;
+  private Vertex[] undoSender;
+  private long[] undoCost;
+
+  void undoSwap() {
+    for (int i = 0; i < undoReceiver.length; i++) {
+      undoReceiver[i].match = undoSender[i];
+      undoReceiver[i].matchCost = undoCost[i];
+      undoSender[i].match = undoReceiver[i];
+    }
+  }
+
+  // moves to a random neighbouring optimal matching, false if there is none
+  boolean exploreTight() {
+    return swapTightCycle() > 0;
+  }
 
   //////////////////////////////////////////////////////////////////////
 
@@ -361,7 +1599,44 @@ public class Graph {
     }
   }
   
+  // Set to randomize the iterations by tie keys instead of by shuffling the
+  // arrays, which touches every edge and scatters the layout.  The keys
+  // rotate the edge scans in dijkstra and the tight path search, which
+  // decides the order in which equal costs enter the heap, and pick among
+  // the tight senders in greedyMatch, and the receivers are visited along
+  // a random stride.  LOCALITY-ORDER implies it.  Keying the heap itself
+  // by tie was tried and made each search about twice as slow, since
+  // equal costs then come out in random order instead of depth first.
+  boolean randomTies = false;
+
+  boolean tiesOnly() { return randomTies || localityOrder; }
+
+  // the receivers are visited along RECEIVERS[(walkStart + i*walkStride) % length]
+  private int walkStart = 0;
+  private int walkStride = 1;
+
+  Vertex walk(int i) {
+    if (!tiesOnly()) return RECEIVERS[i];
+    return RECEIVERS[(int)((walkStart + (long)i*walkStride) % RECEIVERS.length)];
+  }
+
+  private static int gcd(int a, int b) { return b == 0 ? a : gcd(b, a % b); }
+
+  // new random tie keys, leaving the layout alone
+  void shuffleTies() {
+    for (Vertex v : RECEIVERS) v.tie = random.nextInt();
+    for (Vertex v : SENDERS) v.tie = random.nextInt();
+    int n = RECEIVERS.length;
+    if (n < 2) return;
+    walkStart = random.nextInt(n);
+    do walkStride = 1 + random.nextInt(n-1); while (gcd(walkStride, n) != 1);
+  }
+
   void shuffle() {
+    if (tiesOnly()) {
+      shuffleTies();
+      return;
+    }
     shuffle(RECEIVERS);
     for (Vertex v : RECEIVERS) shuffle(v.EDGES);
 
@@ -385,23 +1660,50 @@ public class Graph {
     }
   }
 
-  void saveMatches() {
-    for (Vertex v : RECEIVERS) {
-      v.savedMatch = v.match;
-      v.savedMatchCost = v.matchCost;
+  // A matching kept aside, as the sender id and cost by receiver id, and
+  // the order of RECEIVERS at the time, for listing its cycles.
+  static class Matching {
+    int[] match = new int[0];
+    long[] cost = new long[0];
+    Vertex[] order = new Vertex[0];
+    int hash;
+  }
+
+  void saveMatching(Matching saved) {
+    if (saved.match.length != receivers.size()) {
+      saved.match = new int[receivers.size()];
+      saved.cost = new long[receivers.size()];
     }
-    for (Vertex v : SENDERS) {
-      v.savedMatch = v.match;
+    if (saved.order.length != RECEIVERS.length) saved.order = new Vertex[RECEIVERS.length];
+    System.arraycopy(RECEIVERS, 0, saved.order, 0, RECEIVERS.length);
+    for (Vertex v : RECEIVERS) {
+      saved.match[v.id] = v.match.id;
+      saved.cost[v.id] = v.matchCost;
     }
+    saved.hash = matchingHash();
   }
-  void restoreMatches() {
+  void restoreMatching(Matching saved) {
+    Vertex[] senderById = new Vertex[receivers.size()];
+    for (Vertex v : SENDERS) senderById[v.id] = v;
     for (Vertex v : RECEIVERS) {
-      v.match = v.savedMatch;
-      v.matchCost = v.savedMatchCost;
+      Vertex sender = senderById[saved.match[v.id]];
+      v.match = sender;
+      v.matchCost = saved.cost[v.id];
+      sender.match = v;
     }
-    for (Vertex v : SENDERS) {
-      v.match = v.savedMatch;
+  }
+
+  // the same for any order of RECEIVERS
+  int matchingHash() {
+    int hash = 0;
+    for (Vertex v : RECEIVERS) hash += (v.id * 0x9E3779B1) ^ v.match.id;
+    return hash;
+  }
+  boolean sameMatching(Matching saved) {
+    for (Vertex v : RECEIVERS) {
+      if (saved.match[v.id] != v.match.id) return false;
     }
+    return true;
   }
 
 } // end Graph
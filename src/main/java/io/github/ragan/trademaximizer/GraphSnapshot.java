@@ -0,0 +1,176 @@
+package io.github.ragan.trademaximizer;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// The built graph saved in binary, for SAVE-SNAPSHOT and LOAD-SNAPSHOT, so
+// that solving the same trade again with other options or seeds skips
+// reading and checking the want lists.  A snapshot is taken right after
+// buildGraph, before removeImpossibleEdges, and holds the #! lines as they
+// were written, the input checksum, the errors and counts that are reported later, and the
+// frozen graph: the items in id order, then the edges of each receiver in
+// order with their costs, then the order of the edges into each sender,
+// so that the loaded graph is the same object for object.  The options
+// that shape the graph (priorities, steps, dummies) are fixed when it is
+// saved; the others can still be changed on the command line.
+//
+// The file is mapped on load.  Strings are UTF-8 with an int length, -1
+// for null; everything else is big-endian.  A file that ends early or
+// does not add up is reported as an IOException, as a missing one is.
+class GraphSnapshot {
+
+  static final int MAGIC = 0x544D534E; // "TMSN"
+  static final int VERSION = 2;
+
+  static void save(TradeMaximizer tm, String checksum, File file) throws IOException {
+    Graph graph = tm.graph;
+    try (DataOutputStream out = new DataOutputStream(
+           new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      writeString(out, checksum);
+      writeStrings(out, tm.optionLines);
+      writeStrings(out, tm.errors);
+      writeStrings(out, tm.officialNames);
+      writeStrings(out, tm.usedNames);
+      out.writeInt(tm.ITEMS);
+      out.writeInt(tm.DUMMY_ITEMS);
+      out.writeInt(tm.width);
+      out.writeInt(tm.contractedDummies);
+
+      out.writeInt(graph.RECEIVERS.length);
+      for (Graph.Vertex v : graph.RECEIVERS) {
+        writeString(out, v.name);
+        writeString(out, v.user);
+        out.writeBoolean(v.isDummy);
+      }
+      // edges are numbered in receiver order
+      Map<Graph.Edge,Integer> number = new HashMap<Graph.Edge,Integer>();
+      for (Graph.Vertex v : graph.RECEIVERS) {
+        out.writeInt(v.edges.size());
+        for (Graph.Edge e : v.edges) {
+          number.put(e, number.size());
+          out.writeInt(e.sender.id);
+          out.writeLong(e.cost);
+        }
+      }
+      for (Graph.Vertex v : graph.SENDERS) {
+        out.writeInt(v.edges.size());
+        for (Graph.Edge e : v.edges) out.writeInt(number.get(e));
+      }
+    }
+  }
+
+  // Fills in a fresh TradeMaximizer and its graph, frozen, and returns
+  // the input checksum.
+  static String load(TradeMaximizer tm, File file, TradeMaximizer.FatalError err) throws IOException {
+    ByteBuffer in;
+    try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+      in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (in.remaining() < 8 || in.getInt() != MAGIC || in.getInt() != VERSION)
+      throw new IOException(file + " is not a snapshot of this version");
+    try {
+      return load(tm, in, err);
+    }
+    catch (BufferUnderflowException | IndexOutOfBoundsException |
+           IllegalArgumentException | NegativeArraySizeException ex) {
+      throw new IOException(file + " is truncated or corrupt");
+    }
+  }
+
+  private static String load(TradeMaximizer tm, ByteBuffer in, TradeMaximizer.FatalError err) throws IOException {
+    String checksum = readString(in);
+
+    // the options go through the usual parser, as if they were the input
+    List<String> lines = readStrings(in);
+    if (lines == null) throw new BufferUnderflowException();
+    Iterator<String> header = lines.iterator();
+    if (tm.readWantLists(() -> header.hasNext() ? header.next() : null, err) == null)
+      throw new IOException("bad options");
+    tm.errors.addAll(readStrings(in));
+    List<String> official = readStrings(in);
+    tm.officialNames = official == null ? null : new HashSet<String>(official);
+    tm.usedNames = readStrings(in);
+    tm.ITEMS = in.getInt();
+    tm.DUMMY_ITEMS = in.getInt();
+    tm.width = in.getInt();
+    tm.contractedDummies = in.getInt();
+
+    Graph graph = tm.graph;
+    int n = count(in);
+    Graph.Vertex[] receivers = new Graph.Vertex[n];
+    for (int i = 0; i < n; i++) {
+      String name = readString(in);
+      String user = readString(in);
+      boolean isDummy = in.get() != 0;
+      receivers[i] = graph.addVertex(name, user, isDummy);
+    }
+    List<Graph.Edge> edges = new ArrayList<Graph.Edge>();
+    for (Graph.Vertex v : receivers) {
+      for (int k = in.getInt(); k > 0; k--) {
+        Graph.Vertex sender = receivers[in.getInt()].twin;
+        Graph.Edge e = new Graph.Edge(v, sender, in.getLong());
+        v.edges.add(e);
+        sender.minimumInCost = Math.min(sender.minimumInCost, e.cost);
+        edges.add(e);
+      }
+    }
+    for (Graph.Vertex v : receivers) {
+      for (int k = in.getInt(); k > 0; k--) v.twin.edges.add(edges.get(in.getInt()));
+    }
+    graph.freeze();
+    return checksum;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static void writeStrings(DataOutputStream out, Collection<String> list) throws IOException {
+    if (list == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(list.size());
+    for (String s : list) writeString(out, s);
+  }
+
+  // a count of things at least 4 bytes long each, checked against what is
+  // left before anything is allocated for them
+  private static int count(ByteBuffer in) {
+    int count = in.getInt();
+    if (count > in.remaining() / 4) throw new BufferUnderflowException();
+    return count;
+  }
+
+  private static String readString(ByteBuffer in) {
+    int length = in.getInt();
+    if (length < 0) return null;
+    if (length > in.remaining()) throw new BufferUnderflowException();
+    byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static List<String> readStrings(ByteBuffer in) {
+    int count = count(in);
+    if (count < 0) return null;
+    List<String> list = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) list.add(readString(in));
+    return list;
+  }
+
+} // end GraphSnapshot
@@ -0,0 +1,475 @@
+package io.github.ragan.trademaximizer;
+
+// Solves the matching with 32-bit costs and prices, for INT-COSTS.  The
+// want lists are copied into flat arrays (the edges out of receiver r are
+// target[start[r]] to target[start[r+1]-1]) and the heap holds distance
+// and node packed into one long, so the dijkstra loop touches half the
+// memory of the Vertex and Edge version and allocates nothing.  The
+// algorithm is the same: the Hopcroft-Karp matching for unit costs, which
+// is found on the graph (see Graph.initialMatching), a greedy match along
+// tight edges, then one dijkstra per phase followed by as many further
+// tight augmenting paths as can be found.
+//
+// Under RANDOM-TIES or LOCALITY-ORDER the receivers are visited in the
+// graph's walk order, the edges are copied starting from firstEdge, the
+// greedy match picks the tight sender with the lowest tie key, and the
+// heap breaks ties between equal distances by tie key instead of by node,
+// so that the iterations differ as they do with the long version.
+//
+// The no-trade edges, and every edge out of a dummy, cost the same
+// nonTradeCost, far above the other costs.  Once it is above the sum of
+// the dearest other want of every receiver, one more trade always beats
+// any saving on the others, so any such cost has the same optimal
+// matchings.  The solve uses the smallest one, big, which keeps the
+// prices much closer together, and lift afterwards turns the prices into
+// ones for the real cost.
+//
+// Costs must fit in an int, which fits checks first.  Prices and
+// distances are computed in long and checked against the int range
+// before being stored.  Prices only ever go down, by up to a no-trade
+// cost a phase, so over a solve they drift far below the costs.  Only
+// their differences matter, though, so they are kept relative to offset:
+// when one would fall below the int range, every price is moved up as
+// far as the highest allows.  If one still falls outside, the prices
+// span more than an int can hold and solve gives up and returns false,
+// leaving the graph for the long version to solve.
+class IntSolver {
+
+  private final Graph graph;
+  private int n; // receivers are 0..n-1 by id, senders n..2n-1
+
+  private int[] start;
+  private int[] target; // sender ids
+  private int[] cost;
+
+  private int[] match; // by node: the sender of a receiver and vice versa, -1 if none
+  private int[] matchCost; // by receiver
+  private int[] price; // by node, less offset
+  private long offset;
+
+  private long nonTradeCost; // in fact the dearest cost in the graph
+  private int big; // what it costs in the solve, 0 if the same
+  private int[] dist;
+  private int[] from; // by sender: the receiver it was reached from
+  private int[] mark;
+  private int stamp = 0;
+
+  private int[] unmatched;
+  private int unmatchedCount;
+  private int[] settled;
+  private int settledCount;
+  private long[] heap = new long[16];
+  private int heapSize;
+  private int sink;
+  private int sinkCost;
+
+  private int[] pathStack;
+  private int[] pathEdge;
+
+  // the heap holds a node's rank, in tie key order when tiesOnly
+  private int[] rank; // by node, null for the identity
+  private int[] byRank;
+  private int[] senderTie; // by sender id, null unless tiesOnly
+
+  IntSolver(Graph graph) {
+    this.graph = graph;
+  }
+
+  // true if every cost fits, so that solve can be tried
+  static boolean fits(Graph graph) {
+    for (Graph.Vertex v : graph.RECEIVERS) {
+      for (Graph.Edge e : v.EDGES) {
+        if (e.cost < 0 || e.cost > Integer.MAX_VALUE) return false;
+      }
+    }
+    return true;
+  }
+
+  // Solves the matching and copies it and the prices back into the graph.
+  // Returns false on overflow, with only the initial matching made.
+  boolean solve() {
+    build();
+    int remaining = unmatchedCount - matched - greedyMatch();
+    while (remaining > 0) {
+      if (!dijkstra()) return false;
+      assert sink >= 0;
+      if (!updatePrices()) return false;
+      augment(sink);
+      remaining -= 1 + augmentTightPaths();
+    }
+    if (big > 0) lift();
+    copyBack();
+    return true;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  private int matched; // by the initial matching
+
+  private void build() {
+    matched = graph.initialMatching();
+    n = graph.receivers.size();
+    int edges = 0;
+    for (Graph.Vertex v : graph.RECEIVERS) edges += v.EDGES.length;
+
+    start = new int[n+1];
+    target = new int[edges];
+    cost = new int[edges];
+    match = new int[2*n];
+    matchCost = new int[n];
+    price = new int[2*n];
+    dist = new int[2*n];
+    from = new int[2*n];
+    mark = new int[2*n];
+    settled = new int[2*n];
+    unmatched = new int[graph.RECEIVERS.length];
+    pathStack = new int[n];
+    pathEdge = new int[n];
+    java.util.Arrays.fill(match, -1);
+    offset = 0;
+    chooseBig();
+
+    // receivers without an active Vertex keep an empty range
+    Graph.Edge[][] byId = new Graph.Edge[n][];
+    for (Graph.Vertex v : graph.RECEIVERS) byId[v.id] = v.EDGES;
+    int[] first = new int[n];
+    for (Graph.Vertex v : graph.RECEIVERS) first[v.id] = graph.firstEdge(v);
+    int k = 0;
+    for (int r = 0; r < n; r++) {
+      start[r] = k;
+      Graph.Edge[] list = byId[r];
+      if (list == null) continue;
+      for (int j = first[r]; j < first[r] + list.length; j++) {
+        Graph.Edge e = list[j < list.length ? j : j - list.length];
+        target[k] = e.sender.id;
+        cost[k++] = cost(e.cost);
+      }
+    }
+    start[n] = k;
+
+    // the initial matching and its prices
+    for (Graph.Vertex r : graph.RECEIVERS) {
+      price[r.id] = (int)r.price;
+      if (r.match != null) link(r.id, r.match.id, cost(r.matchCost));
+    }
+    // the senders start at their cheapest edge in, which is big if they
+    // only have edges costing nonTradeCost
+    for (Graph.Vertex s : graph.SENDERS) price[n + s.id] = cost(s.price);
+    unmatchedCount = 0;
+    for (int i = 0; i < graph.RECEIVERS.length; i++) unmatched[unmatchedCount++] = graph.walk(i).id;
+
+    rank = byRank = senderTie = null;
+    if (graph.tiesOnly()) rankByTie();
+  }
+
+  private void chooseBig() {
+    nonTradeCost = 0;
+    for (Graph.Vertex v : graph.RECEIVERS) {
+      for (Graph.Edge e : v.EDGES) nonTradeCost = Math.max(nonTradeCost, e.cost);
+    }
+    long sum = 0;
+    for (Graph.Vertex v : graph.RECEIVERS) {
+      long dearest = 0;
+      for (Graph.Edge e : v.EDGES) {
+        if (e.cost < nonTradeCost) dearest = Math.max(dearest, e.cost);
+      }
+      sum += dearest;
+    }
+    big = sum + 1 < nonTradeCost ? (int)(sum + 1) : 0;
+  }
+
+  private int cost(long c) {
+    return big > 0 && c == nonTradeCost ? big : (int)c;
+  }
+
+  private long realCost(int c) {
+    return big > 0 && c == big ? nonTradeCost : c;
+  }
+
+  private void rankByTie() {
+    final int[] tie = new int[2*n];
+    senderTie = new int[n];
+    for (Graph.Vertex r : graph.RECEIVERS) tie[r.id] = r.tie;
+    for (Graph.Vertex s : graph.SENDERS) tie[n + s.id] = senderTie[s.id] = s.tie;
+    Integer[] nodes = new Integer[2*n];
+    for (int v = 0; v < 2*n; v++) nodes[v] = v;
+    java.util.Arrays.sort(nodes, (a, b) -> tie[a] != tie[b] ? Integer.compare(tie[a], tie[b]) : a - b);
+    rank = new int[2*n];
+    byRank = new int[2*n];
+    for (int i = 0; i < 2*n; i++) {
+      byRank[i] = nodes[i];
+      rank[nodes[i]] = i;
+    }
+  }
+
+  private void link(int r, int s, int c) {
+    match[r] = n + s;
+    match[n + s] = r;
+    matchCost[r] = c;
+  }
+
+  // the counterpart of Graph.greedyMatch
+  private int greedyMatch() {
+    int matched = 0;
+    for (int i = 0; i < unmatchedCount; i++) {
+      int r = unmatched[i];
+      if (match[r] != -1) continue;
+      int best = -1;
+      for (int k = start[r]; k < start[r+1]; k++) {
+        int s = target[k];
+        if (match[n + s] == -1 && cost[k] == price[n + s] &&
+            (best == -1 || senderTie[s] < senderTie[target[best]])) {
+          best = k;
+          if (senderTie == null) break;
+        }
+      }
+      if (best != -1) {
+        link(r, target[best], cost[best]);
+        matched++;
+      }
+    }
+    return matched;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  private void push(int d, int node) {
+    if (heapSize == heap.length) heap = java.util.Arrays.copyOf(heap, 2*heapSize);
+    long key = ((long)d << 32) | (rank == null ? node : rank[node]);
+    int i = heapSize++;
+    while (i > 0) {
+      int parent = (i-1) >> 1;
+      if (heap[parent] <= key) break;
+      heap[i] = heap[parent];
+      i = parent;
+    }
+    heap[i] = key;
+  }
+
+  private long pop() {
+    long top = heap[0];
+    long last = heap[--heapSize];
+    int i = 0;
+    while (true) {
+      int child = 2*i + 1;
+      if (child >= heapSize) break;
+      if (child+1 < heapSize && heap[child+1] < heap[child]) child++;
+      if (heap[child] >= last) break;
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = last;
+    return top;
+  }
+
+  // Reaches node at distance d unless it already has a shorter one.  The
+  // heap may hold stale entries, which are skipped when popped.
+  private boolean reach(int node, long d, int via) {
+    if (d > Integer.MAX_VALUE) return false;
+    if (mark[node] != stamp || d < dist[node]) {
+      mark[node] = stamp;
+      dist[node] = (int)d;
+      from[node] = via;
+      push((int)d, node);
+    }
+    return true;
+  }
+
+  // Dijkstra from every unmatched receiver, stopping at the first
+  // unmatched sender, which is left in sink.  Returns false on overflow.
+  private boolean dijkstra() {
+    stamp++;
+    heapSize = 0;
+    settledCount = 0;
+    sink = -1;
+    int count = 0;
+    for (int i = 0; i < unmatchedCount; i++) {
+      int r = unmatched[i];
+      if (match[r] != -1) continue;
+      unmatched[count++] = r;
+      reach(r, 0, -1);
+    }
+    unmatchedCount = count;
+
+    while (heapSize > 0) {
+      long top = pop();
+      int node = rank == null ? (int)top : byRank[(int)top];
+      int d = (int)(top >>> 32);
+      if (d != dist[node] || mark[node] == -stamp) continue; // stale
+      mark[node] = -stamp; // settled
+      settled[settledCount++] = node;
+      if (node < n) {
+        for (int k = start[node]; k < start[node+1]; k++) {
+          int s = n + target[k];
+          if (s == match[node] || mark[s] == -stamp) continue;
+          long c = (long)price[node] + cost[k] - price[s];
+          assert c >= 0;
+          if (!reach(s, d + c, node)) return false;
+        }
+      }
+      else if (match[node] == -1) {
+        sink = node;
+        sinkCost = d;
+        return true;
+      }
+      else {
+        int r = match[node];
+        if (mark[r] == -stamp) continue;
+        long c = (long)price[node] - matchCost[r] - price[r];
+        assert c >= 0;
+        if (!reach(r, d + c, node)) return false;
+      }
+    }
+    return true;
+  }
+
+  // see Graph.updatePrices
+  private boolean updatePrices() {
+    for (int i = 0; i < settledCount; i++) {
+      int v = settled[i];
+      long p = (long)price[v] + Math.min(dist[v], sinkCost) - sinkCost;
+      if (p < Integer.MIN_VALUE) {
+        long shift = renormalise();
+        p += shift;
+        if (p < Integer.MIN_VALUE) return false;
+      }
+      price[v] = (int)p;
+    }
+    return true;
+  }
+
+  // Moves every price up so that the highest is Integer.MAX_VALUE, which
+  // leaves the reduced costs as they were, and returns the shift.
+  private long renormalise() {
+    int max = Integer.MIN_VALUE;
+    for (int p : price) max = Math.max(max, p);
+    long shift = (long)Integer.MAX_VALUE - max;
+    for (int v = 0; v < 2*n; v++) price[v] += shift;
+    offset -= shift;
+    return shift;
+  }
+
+  private int edgeCost(int r, int s) {
+    for (int k = start[r]; k < start[r+1]; k++) {
+      if (target[k] == s - n) return cost[k];
+    }
+    throw new IllegalStateException("no edge");
+  }
+
+  // see Graph.augment
+  private void augment(int s) {
+    while (s != -1) {
+      int r = from[s];
+      int next = match[r] == -1 ? -1 : match[r];
+      link(r, s - n, edgeCost(r, s));
+      s = next;
+    }
+  }
+
+  // see Graph.augmentTightPaths
+  private int augmentTightPaths() {
+    stamp++;
+    int count = 0;
+    for (int i = 0; i < unmatchedCount; i++) {
+      int root = unmatched[i];
+      if (match[root] != -1 || mark[root] == stamp) continue;
+      int s = searchTightPath(root);
+      if (s != -1) {
+        augment(s);
+        count++;
+      }
+    }
+    return count;
+  }
+
+  // Depth first along edges of zero reduced cost from root, visiting each
+  // receiver at most once per stamp.  Leaves the path in the from links
+  // and returns the unmatched sender at its end, or -1.
+  private int searchTightPath(int root) {
+    int depth = 0;
+    pathStack[0] = root;
+    pathEdge[0] = start[root];
+    mark[root] = stamp;
+    while (depth >= 0) {
+      int r = pathStack[depth];
+      if (pathEdge[depth] == start[r+1]) {
+        depth--;
+        continue;
+      }
+      int k = pathEdge[depth]++;
+      int s = n + target[k];
+      if (s == match[r] || mark[s] == stamp) continue;
+      if ((long)price[r] + cost[k] != price[s]) continue;
+      mark[s] = stamp;
+      from[s] = r;
+      int next = match[s];
+      if (next == -1) return s;
+      if (mark[next] == stamp) continue;
+      mark[next] = stamp;
+      pathStack[++depth] = next;
+      pathEdge[depth] = start[next];
+    }
+    return -1;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  // With nonTradeCost in place of big the matching is still optimal, but
+  // the prices need each edge costing it to gain the difference.  That is
+  // done by adding the difference times level to every price, where the
+  // levels are such that the level of a sender is at most that of a
+  // receiver wanting it, one more across an edge costing nonTradeCost,
+  // and exactly that across a matched edge.  The level of a receiver then
+  // fixes that of its match, so the levels are the shortest distances
+  // between matched pairs, which Bellman-Ford finds from all zeros.  There
+  // is no negative cycle, as that would be a matching with fewer edges
+  // costing nonTradeCost.
+  private int[] level; // by node
+
+  private void lift() {
+    level = new int[2*n];
+    boolean[] queued = new boolean[n];
+    java.util.ArrayDeque<Integer> queue = new java.util.ArrayDeque<Integer>();
+    for (Graph.Vertex v : graph.RECEIVERS) {
+      queue.add(v.id);
+      queued[v.id] = true;
+    }
+    while (!queue.isEmpty()) {
+      int r = queue.poll();
+      queued[r] = false;
+      for (int k = start[r]; k < start[r+1]; k++) {
+        int s = n + target[k];
+        if (s == match[r]) continue;
+        int next = match[s];
+        int d = level[r] + isBig(cost[k]) - isBig(matchCost[next]);
+        if (d >= level[next]) continue;
+        level[next] = d;
+        if (!queued[next]) {
+          queued[next] = true;
+          queue.add(next);
+        }
+      }
+    }
+    for (Graph.Vertex v : graph.RECEIVERS)
+      level[match[v.id]] = level[v.id] + isBig(matchCost[v.id]);
+  }
+
+  private int isBig(int c) {
+    return c == big ? 1 : 0;
+  }
+
+  private void copyBack() {
+    Graph.Vertex[] senderById = new Graph.Vertex[n];
+    for (Graph.Vertex s : graph.SENDERS) senderById[s.id] = s;
+    long gain = big > 0 ? nonTradeCost - big : 0;
+    for (Graph.Vertex r : graph.RECEIVERS) {
+      Graph.Vertex s = senderById[match[r.id] - n];
+      r.match = s;
+      r.matchCost = realCost(matchCost[r.id]);
+      r.price = price[r.id] + offset + (big > 0 ? gain * level[r.id] : 0);
+      s.match = r;
+      s.price = price[n + s.id] + offset + (big > 0 ? gain * level[n + s.id] : 0);
+    }
+  }
+
+} // end IntSolver
@@ -0,0 +1,70 @@
+package io.github.ragan.trademaximizer;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// The lines of an input file named on the command line, read straight
+// from the file mapped into memory instead of through a stream and a
+// decoder.  Lines are split on the bytes, as readLine splits them, and a
+// line of plain ASCII is copied into its String as is; only a line with
+// other bytes (usually a username) is decoded.  The charset is the one
+// that standard input is read with, so a file gives the same want lists
+// whichever way it comes in.
+class MappedInput implements TradeMaximizer.LineSource {
+
+  private static final Charset CHARSET = Charset.defaultCharset();
+
+  // true if CHARSET agrees with ASCII below 0x80, as nearly all do
+  private static final boolean ASCII_SAFE = asciiSafe();
+
+  private static boolean asciiSafe() {
+    byte[] ascii = new byte[128];
+    for (int i = 0; i < ascii.length; i++) ascii[i] = (byte)i;
+    return Arrays.equals(ascii, new String(ascii, CHARSET).getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  private final MappedByteBuffer bytes;
+  private int pos = 0;
+  private byte[] line = new byte[256];
+
+  private MappedInput(MappedByteBuffer bytes) {
+    this.bytes = bytes;
+  }
+
+  // a single mapping is at most 2GB, so larger files are streamed instead
+  static TradeMaximizer.LineSource open(File file) throws IOException {
+    try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+      if (channel.size() > Integer.MAX_VALUE || !ASCII_SAFE) {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+        return in::readLine;
+      }
+      return new MappedInput(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  @Override
+  public String readLine() {
+    int limit = bytes.limit();
+    if (pos >= limit) return null;
+    int start = pos;
+    boolean ascii = true;
+    while (pos < limit) {
+      byte b = bytes.get(pos);
+      if (b == '\n' || b == '\r') break;
+      if (b < 0) ascii = false;
+      pos++;
+    }
+    int length = pos - start;
+    if (pos < limit && bytes.get(pos++) == '\r' && pos < limit && bytes.get(pos) == '\n') pos++;
+
+    if (line.length < length) line = new byte[Math.max(length, 2*line.length)];
+    bytes.position(start);
+    bytes.get(line, 0, length);
+    return new String(line, 0, length, ascii ? StandardCharsets.ISO_8859_1 : CHARSET);
+  }
+
+} // end MappedInput
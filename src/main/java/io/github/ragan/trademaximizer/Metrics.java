@@ -0,0 +1,9 @@
+package io.github.ragan.trademaximizer;
+
+// Metrics are calculated straight from the cycles walked by the graph,
+// with counters that are kept from one call to the next, so that the
+// iterations do not allocate.  The metrics themselves are in
+// TradeMaximizer.java.
+interface Metrics {
+  int calculate(Graph.Cycles cycles);
+}
@@ -0,0 +1,212 @@
+package io.github.ragan.trademaximizer;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Labels the strongly connected components of the want graph in parallel,
+// for Graph.removeImpossibleEdges.  This is the forward-backward algorithm:
+// the component of a pivot is what it can reach intersected with what can
+// reach it, and the three pieces left over cannot share a component, so
+// they are split further on their own, in parallel while they are large.
+// Before each split, items with no wants or no wanters inside their piece
+// are trimmed off as singleton components, which removes most of the
+// recursion on typical inputs.  Only the component labels are written;
+// they partition the items exactly as the sequential version does.
+class ParallelComponents {
+
+  // pieces smaller than this are finished by the task that found them
+  static final int SEQUENTIAL = 1024;
+
+  private final Graph.Vertex[] items; // receivers, indexed by id
+  private final int[] color; // piece an item belongs to, -1 once labelled
+  private final int[] forward;
+  private final int[] backward;
+  private final int[] inDegree;
+  private final int[] outDegree;
+  private final AtomicInteger colors = new AtomicInteger(0);
+  private final AtomicInteger labels;
+
+  ParallelComponents(Graph.Vertex[] receivers, int lastLabel) {
+    int n = 0;
+    for (Graph.Vertex v : receivers) n = Math.max(n, v.id + 1);
+    items = new Graph.Vertex[n];
+    for (Graph.Vertex v : receivers) items[v.id] = v;
+    color = new int[n];
+    forward = new int[n];
+    backward = new int[n];
+    inDegree = new int[n];
+    outDegree = new int[n];
+    Arrays.fill(color, -1);
+    Arrays.fill(forward, -1);
+    Arrays.fill(backward, -1);
+    labels = new AtomicInteger(lastLabel);
+  }
+
+  // labels every item and returns the last label used
+  int label(ForkJoinPool pool) {
+    int[] all = new int[items.length];
+    int count = 0;
+    for (int i = 0; i < items.length; i++) {
+      if (items[i] == null) continue;
+      color[i] = 0;
+      all[count++] = i;
+    }
+    colors.set(1);
+    pool.invoke(new Piece(Arrays.copyOf(all, count)));
+    return labels.get();
+  }
+
+  private class Piece extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final int[] ids;
+
+    Piece(int[] ids) { this.ids = ids; }
+
+    protected void compute() {
+      if (ids.length >= SEQUENTIAL) {
+        List<Piece> parts = new ArrayList<Piece>();
+        for (int[] part : split(ids)) parts.add(new Piece(part));
+        invokeAll(parts);
+        return;
+      }
+      Deque<int[]> work = new ArrayDeque<int[]>();
+      work.push(ids);
+      while (!work.isEmpty()) {
+        for (int[] part : split(work.pop())) work.push(part);
+      }
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  private void newComponent(int v) {
+    int label = labels.incrementAndGet();
+    items[v].component = items[v].twin.component = label;
+    color[v] = -1;
+  }
+
+  // the items that item v wants (out) or that want it (in)
+  private Graph.Edge[] edges(int v, boolean out) {
+    return out ? items[v].EDGES : items[v].twin.EDGES;
+  }
+  private int other(Graph.Edge e, boolean out) {
+    return out ? e.sender.twin.id : e.receiver.id;
+  }
+
+  // the items passed in need not be closed under the edges
+  private boolean inPiece(int w, int c) {
+    return w < color.length && color[w] == c;
+  }
+
+  private int degree(int v, int c, boolean out) {
+    int degree = 0;
+    for (Graph.Edge e : edges(v, out)) {
+      int w = other(e, out);
+      if (w != v && inPiece(w, c)) degree++;
+    }
+    return degree;
+  }
+
+  // labels items that cannot be on a cycle within piece c as singletons
+  private void trim(int[] ids, int c) {
+    int[] queue = new int[ids.length];
+    int head = 0;
+    int tail = 0;
+    for (int v : ids) {
+      inDegree[v] = degree(v, c, false);
+      outDegree[v] = degree(v, c, true);
+      if (inDegree[v] == 0 || outDegree[v] == 0) queue[tail++] = v;
+    }
+    while (head < tail) {
+      int v = queue[head++];
+      newComponent(v);
+      for (boolean out : new boolean[] { true, false }) {
+        for (Graph.Edge e : edges(v, out)) {
+          int w = other(e, out);
+          if (w == v || !inPiece(w, c)) continue;
+          // queue w when its first degree drops to zero
+          int left = out ? --inDegree[w] : --outDegree[w];
+          int otherSide = out ? outDegree[w] : inDegree[w];
+          if (left == 0 && otherSide > 0) queue[tail++] = w;
+        }
+      }
+    }
+  }
+
+  // marks everything within piece c reachable from pivot
+  private void reach(int pivot, int c, boolean out, int[] marks, int size) {
+    int[] queue = new int[size];
+    int head = 0;
+    int tail = 0;
+    marks[pivot] = c;
+    queue[tail++] = pivot;
+    while (head < tail) {
+      int v = queue[head++];
+      for (Graph.Edge e : edges(v, out)) {
+        int w = other(e, out);
+        if (!inPiece(w, c) || marks[w] == c) continue;
+        marks[w] = c;
+        queue[tail++] = w;
+      }
+    }
+  }
+
+  // Peels off the component of one pivot and returns the remaining pieces,
+  // each already recoloured.
+  private List<int[]> split(int[] ids) {
+    List<int[]> parts = new ArrayList<int[]>();
+    int c = color[ids[0]];
+    trim(ids, c);
+
+    int count = 0;
+    int pivot = -1;
+    for (int v : ids) {
+      if (color[v] != c) continue;
+      if (pivot == -1) pivot = v;
+      count++;
+    }
+    if (pivot == -1) return parts;
+
+    reach(pivot, c, true, forward, count);
+    reach(pivot, c, false, backward, count);
+
+    int[] sizes = new int[3];
+    for (int v : ids) {
+      if (color[v] != c || forward[v] == c && backward[v] == c) continue;
+      sizes[kind(v, c)]++;
+    }
+    int[][] pieces = new int[3][];
+    int[] colorOf = new int[3];
+    for (int k = 0; k < 3; k++) {
+      pieces[k] = new int[sizes[k]];
+      colorOf[k] = colors.getAndIncrement();
+      sizes[k] = 0;
+    }
+
+    int label = labels.incrementAndGet();
+    for (int v : ids) {
+      if (color[v] != c) continue;
+      if (forward[v] == c && backward[v] == c) {
+        items[v].component = items[v].twin.component = label;
+        color[v] = -1;
+        continue;
+      }
+      int k = kind(v, c);
+      pieces[k][sizes[k]++] = v;
+      color[v] = colorOf[k];
+    }
+    for (int[] piece : pieces) {
+      if (piece.length > 0) parts.add(piece);
+    }
+    return parts;
+  }
+
+  // 0: reachable from the pivot only, 1: reaches the pivot only, 2: neither
+  private int kind(int v, int c) {
+    if (forward[v] == c) return 0;
+    if (backward[v] == c) return 1;
+    return 2;
+  }
+
+} // end ParallelComponents
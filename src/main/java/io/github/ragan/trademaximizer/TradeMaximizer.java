@@ -12,31 +12,27 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.text.*;
+import java.util.regex.Pattern;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
-interface Metrics {
-  int calculate(List<List<Graph.Vertex>> cycles);
-}
-
 class MetricSumSquares implements Metrics {
-  private List<List<Graph.Vertex>> cycles;
+  private int[] sizes = new int[0];
+  private int count;
   private int sumOfSquares;
 
-  public int calculate(List<List<Graph.Vertex>> cycles) {
+  public int calculate(Graph.Cycles cycles) {
     sumOfSquares = 0;
-    for (List<Graph.Vertex> cycle: cycles) sumOfSquares += cycle.size()*cycle.size();
-    this.cycles = cycles;
+    for (int i = 0; i < cycles.count; i++) sumOfSquares += cycles.sizes[i]*cycles.sizes[i];
+    sizes = cycles.sizes;
+    count = cycles.count;
     return sumOfSquares;
   }
 
   public String toString() {
-    int[] groups = new int[cycles.size()];
+    int[] groups = Arrays.copyOf(sizes, count);
     String str = "[ ";
 
-    for (int j = 0; j < cycles.size(); j++)
-      groups[j] = cycles.get(j).size();
-
     Arrays.sort(groups);
 
     str = str + sumOfSquares + " :";
@@ -50,15 +46,21 @@ class MetricSumSquares implements Metrics {
 
 class MetricUsersTrading implements Metrics {
   private int count;
-
-  public int calculate(List<List<Graph.Vertex>> cycles) {
-    HashSet<String> users = new HashSet<String>();
-
-    for (List<Graph.Vertex> cycle : cycles)
-        for(Graph.Vertex vert : cycle)
-            users.add(vert.user);
-
-    count = users.size();
+  private int[] seen = new int[0]; // stamp, by user id
+  private int stamp = 0;
+
+  public int calculate(Graph.Cycles cycles) {
+    if (seen.length < cycles.graph.USERS.length) seen = new int[cycles.graph.USERS.length];
+    stamp++;
+    count = 0;
+
+    for (int i = 0; i < cycles.trades; i++) {
+      int user = cycles.items[i].userId;
+      if (seen[user] != stamp) {
+        seen[user] = stamp;
+        count++;
+      }
+    }
 
     return -count;
   }
@@ -71,25 +73,22 @@ class MetricUsersTrading implements Metrics {
 class MetricFavorUser implements Metrics {
   private String user;
   private int count;
+  private Graph graph;
+  private boolean[] favored; // by user id
 
   public MetricFavorUser(String user) { this.user = "(" + user + ")"; }
 
-  public int calculate(List<List<Graph.Vertex>> cycles) {
-    Map<String, Integer> users = new HashMap<String, Integer>();
-    Integer xyz = null;
-    int sum = 0;
-
-    for (List<Graph.Vertex> cycle : cycles)
-        for(Graph.Vertex vert : cycle) {
-	    String user = vert.user.toUpperCase();
-            users.put(user, 1 + (users.containsKey(user) ? users.get(user) : 0));
-	}
+  public int calculate(Graph.Cycles cycles) {
+    if (graph != cycles.graph) {
+      graph = cycles.graph;
+      favored = new boolean[graph.USERS.length];
+      for (int i = 0; i < favored.length; i++)
+        favored[i] = graph.USERS[i] != null && graph.USERS[i].toUpperCase().equals(user);
+    }
+    count = 0;
 
-    xyz = users.get(this.user);
-    if( xyz != null )
-      count = xyz.intValue();
-    else
-      count = 0;
+    for (int i = 0; i < cycles.trades; i++)
+      if (favored[cycles.items[i].userId]) count++;
 
     return -count;
   }
@@ -102,25 +101,27 @@ class MetricFavorUser implements Metrics {
 class MetricUsersSumOfSquares implements Metrics {
   private int sum;
   private int count;
+  private int[] trades = new int[0]; // by user id, zero between calls
+  private int[] touched = new int[0];
 
-  public int calculate(List<List<Graph.Vertex>> cycles) {
-    Map<String, Integer> users = new HashMap<String, Integer>();
+  public int calculate(Graph.Cycles cycles) {
+    if (trades.length < cycles.graph.USERS.length) {
+      trades = new int[cycles.graph.USERS.length];
+      touched = new int[cycles.graph.USERS.length];
+    }
     sum = 0;
+    count = 0;
 
-    for (List<Graph.Vertex> cycle : cycles)
-        for(Graph.Vertex vert : cycle)
-            users.put(vert.user, 1 + (users.containsKey(vert.user) ? users.get(vert.user) : 0));
-
-    count = users.size();
+    for (int i = 0; i < cycles.trades; i++) {
+      int user = cycles.items[i].userId;
+      if (trades[user]++ == 0) touched[count++] = user;
+    }
 
-    for (Integer user : users.values())
-        sum += user.intValue()*user.intValue();
-	//if (debug) {
-        //  System.out.print("Sizes:");
-        //  for (Integer user : users.values())
-        //    System.out.print(" " + user.intValue());
-        //  logger.log();
-        //}
+    for (int j = 0; j < count; j++) {
+      int user = touched[j];
+      sum += trades[user]*trades[user];
+      trades[user] = 0;
+    }
 
     return sum;
   }
@@ -136,6 +137,10 @@ public class TradeMaximizer {
   final String version = "Version 1.4a";
 
   Metrics metric = new MetricSumSquares();
+  // all the metrics of METRIC=, the first being metric
+  List<Metrics> metrics = new ArrayList<Metrics>();
+  List<String> metricNames = new ArrayList<String>();
+  int topSolutions = 1;
 
   public void run(String[] args, String in) throws IOException {
     run(args, new ByteArrayInputStream(in.getBytes()), System.out);
@@ -146,8 +151,36 @@ public class TradeMaximizer {
     logger.log("TradeMaximizer " + version);
 
 
-    List< String[] > wantLists = readWantLists(istream, new FatalError(ostream));
-    if (wantLists == null) return;
+    // a file named after the options, or a snapshot, takes the place of
+    // the input, so those are looked for first
+    String inputFile = parseArgs(args, false, new FatalError(ostream), logger);
+    List< String[] > wantLists = null;
+    String checksum = null;
+    if (loadSnapshot != null) {
+      try {
+        checksum = GraphSnapshot.load(this, loadSnapshot, new FatalError(ostream));
+      }
+      catch (IOException ex) {
+        new FatalError(ostream).fatalError("Cannot load snapshot: " + ex.getMessage());
+        return;
+      }
+    }
+    else if (inputFile != null) {
+      LineSource in;
+      try {
+        in = MappedInput.open(new File(inputFile));
+      }
+      catch (IOException ex) {
+        new FatalError(ostream).fatalError("Cannot read " + inputFile + ": " + ex.getMessage());
+        return;
+      }
+      wantLists = readWantLists(in, new FatalError(ostream));
+      if (wantLists == null) return;
+    }
+    else {
+      wantLists = readWantLists(istream, new FatalError(ostream));
+      if (wantLists == null) return;
+    }
     if (options.size() > 0) {
       logger.log("Options:");
       for (String option : options) logger.log(" "+option);
@@ -155,7 +188,7 @@ public class TradeMaximizer {
     }
     logger.log("\n");
 
-    try {
+    if (wantLists != null) try {
       MessageDigest digest = MessageDigest.getInstance("MD5");
       for (String[] wset : wantLists) {
         for (String w : wset) {
@@ -164,11 +197,16 @@ public class TradeMaximizer {
         }
   	digest.update((byte)'\n');
       }
-      logger.log("Input Checksum: " + toHexString(digest.digest()));
+      checksum = toHexString(digest.digest());
     }
     catch (NoSuchAlgorithmException ex) { }
+    if (checksum != null) logger.log("Input Checksum: " + checksum);
 
-//    parseArgs(args, true);
+    parseArgs(args, true, new FatalError(ostream), logger);
+
+    // with a budget but no count, iterate until the budget runs out
+    if (iterations == 1 && (timeLimit > 0 || stopAfterNoImprovement > 0))
+      iterations = Integer.MAX_VALUE;
 
     if( iterations > 1 && seed == -1 ) {
       seed = System.currentTimeMillis();
@@ -178,7 +216,24 @@ public class TradeMaximizer {
     if ( ! (metric instanceof MetricSumSquares) && priorityScheme != NO_PRIORITIES )
       logger.log("Warning: using priorities with the non-default metric is normally worthless");
 
-    buildGraph(wantLists);
+    // the item classes are solved without the tie keys and walk order
+    if (compressItems && (randomTies || localityOrder)) {
+      logger.log("Note: COMPRESS-ITEMS is ignored with RANDOM-TIES or LOCALITY-ORDER");
+      compressItems = false;
+    }
+
+    if (wantLists != null) {
+      buildGraph(wantLists);
+      if (saveSnapshot != null) {
+        try {
+          GraphSnapshot.save(this, checksum, saveSnapshot);
+        }
+        catch (IOException ex) {
+          new FatalError(ostream).fatalError("Cannot save snapshot: " + ex.getMessage());
+          return;
+        }
+      }
+    }
     if (showMissing && officialNames != null && officialNames.size() > 0) {
       for (String name : usedNames) officialNames.remove(name);
       List<String> missing = new ArrayList<String>(officialNames);
@@ -188,6 +243,8 @@ public class TradeMaximizer {
       }
       logger.log("\n");
     }
+    if (contractDummies && verbose)
+      logger.log("Contracted " + contractedDummies + " of " + DUMMY_ITEMS + " dummy items");
     if (showErrors && errors.size() > 0) {
       Collections.sort(errors);
       logger.log("ERRORS:");
@@ -196,38 +253,184 @@ public class TradeMaximizer {
     }
 
     long startTime = System.currentTimeMillis();
+    graph.setThreads(threads);
+    graph.compressItems = compressItems;
+    graph.sparsify = sparsify;
+    graph.intCosts = intCosts;
+    graph.randomTies = randomTies;
     graph.removeImpossibleEdges();
-    List<List<Graph.Vertex>> bestCycles = graph.findCycles();
-    int bestMetric = metric.calculate(bestCycles);
+    if (localityOrder) {
+      double before = graph.meanEdgeSpan();
+      graph.orderForLocality();
+      if (verbose)
+        logger.log("Locality order: mean edge span " + new DecimalFormat("0.0").format(before)
+                   + " -> " + new DecimalFormat("0.0").format(graph.meanEdgeSpan()));
+    }
+    if (lowMemory) {
+      // everything used only to read the input and build the graph; the
+      // heap is only measured, which forces a collection, for VERBOSE
+      long before = verbose ? heapUsed() : 0;
+      wantLists = null;
+      usedNames = null;
+      officialNames = null;
+      graph.releaseBuildData();
+      if (verbose)
+        logger.log("Low memory: heap " + (before >> 20) + "MB -> " + (heapUsed() >> 20) + "MB");
+    }
+    int tradeBound = -1; // an extra Hopcroft-Karp run, so only when needed
+    if (priorityScheme == NO_PRIORITIES) {
+      graph.unitCosts = true;
+      if (verbose) logger.log("Upper bound on trades = " + (tradeBound = graph.maximumTrades()));
+    }
+    if (preview) {
+      // near instant but not optimal, see Graph.topTradingCycles; the
+      // trades are the real items that trade once the dummies are elided,
+      // which is what the bound counts
+      int bound = tradeBound >= 0 ? tradeBound : graph.maximumTrades();
+      graph.topTradingCycles();
+      List<List<Graph.Vertex>> cycles = graph.collectCycles();
+      graph.elideDummies();
+      int trades = 0;
+      for (Graph.Vertex v : graph.RECEIVERS) {
+        if (!v.isDummy && v.match != v.twin) trades++;
+      }
+      // the bound is seldom reached, so the gap overstates the loss
+      String gap = bound == 0 ? ""
+        : new DecimalFormat(" (gap to the upper bound 0.0%)").format((bound - trades) / (double)bound);
+      logger.log("Preview: " + trades + " trades, upper bound on trades = " + bound + gap);
+      logger.log("\n");
+      long stopTime = System.currentTimeMillis();
+      displayMatches(cycles, logger);
+      if (showElapsedTime)
+        logger.log("Elapsed time = " + (stopTime-startTime) + "ms");
+      return;
+    }
+
+    if (metrics.isEmpty()) {
+      metrics.add(metric);
+      metricNames.add("CHAIN-SIZES-SOS");
+    }
+    // every matching is scored by all the metrics, and the best for each
+    // are kept; only those are turned into lists, at the end
+    boolean several = metrics.size() > 1 || topSolutions > 1;
+    List<BestSolutions> best = new ArrayList<BestSolutions>();
+    for (int m = 0; m < metrics.size(); m++)
+      best.add(new BestSolutions(metricNames.get(m), metrics.get(m), topSolutions));
+
+    Graph.Cycles cycles = new Graph.Cycles();
+    // the cache only serves the first solve, the iterations must differ
+    if (cacheComponents) graph.componentCache = ComponentCache.SHARED;
+    graph.solveMatching();
+    graph.componentCache = null;
+    graph.walkCycles(cycles);
+    for (BestSolutions b : best) b.offer(graph, cycles, 1);
+    if (compressItems && verbose)
+      logger.log("Item classes = " + graph.itemClasses + " for " + graph.RECEIVERS.length + " items"
+                 + (graph.itemsCompressed ? "" : ", too many to compress"));
+    if (sparsify > 0 && verbose && !graph.itemsCompressed)
+      logger.log("Sparsified to " + graph.sparseEdges + " edges in " + graph.sparseRounds + " rounds");
+    if (cacheComponents && verbose)
+      logger.log("Cached components reused = " + graph.cacheHits
+                 + " of " + graph.cacheComponents);
 
     if (iterations > 1) {
-      logger.log(metric.toString());
-      graph.saveMatches();
+      for (BestSolutions b : best) logBest(b, several, logger);
+
+      // for ANNEAL, which follows the first metric
+      Random random = new Random(seed);
+      int currentMetric = best.get(0).value;
+      double temperature = 0;
+      int evaluations = 1;
+      int bestEvaluation = 1;
 
       for (int i = 0; i < iterations-1; i++) {
-        graph.shuffle();
-        List<List<Graph.Vertex>> cycles = graph.findCycles();
-        int newMetric = metric.calculate(cycles);
-
-        if (newMetric < bestMetric) {
-          bestMetric = newMetric;
-          bestCycles = cycles;
-          graph.saveMatches();
-          logger.log(metric.toString());
+        long elapsed = System.currentTimeMillis() - startTime;
+        if (timeLimit > 0 && elapsed >= timeLimit) {
+          logger.log("Time limit reached after " + evaluations + " evaluations");
+          break;
+        }
+        if (stopAfterNoImprovement > 0 && evaluations - bestEvaluation >= stopAfterNoImprovement) {
+          logger.log("No improvement in " + stopAfterNoImprovement + " evaluations");
+          break;
+        }
+
+        if (searchStrategy == RESOLVE_SEARCH) {
+          graph.shuffle();
+          graph.solveMatching();
+        }
+        else {
+          // a random step among the optimal matchings, from wherever the
+          // previous iteration left off
+          if (!graph.exploreTight()) {
+            logger.log("No other optimal matching exists");
+            break;
+          }
+        }
+        graph.walkCycles(cycles);
+        evaluations++;
+
+        boolean improved = false;
+        for (BestSolutions b : best) {
+          if (b.offer(graph, cycles, evaluations)) {
+            improved = true;
+            logBest(b, several, logger);
+          }
         }
+        if (improved)
+          bestEvaluation = evaluations;
         else if (verbose)
           logger.log("# " + metric);
+        int newMetric = best.get(0).value;
+
+        if (searchStrategy == ANNEAL_SEARCH) {
+          // Simulated annealing: a worse step is kept with probability
+          // exp(-delta/T), where T starts at the first nonzero change seen
+          // and falls linearly to zero as the iterations or the time
+          // limit, whichever is nearer, are used up.
+          int delta = newMetric - currentMetric;
+          if (temperature == 0) temperature = Math.abs(delta);
+          double used = (i+1) / (double)(iterations-1);
+          if (timeLimit > 0) used = Math.max(used, elapsed / (double)timeLimit);
+          double t = temperature * (1 - used);
+          if (delta <= 0 || random.nextDouble() < Math.exp(-delta / t))
+            currentMetric = newMetric;
+          else
+            graph.undoSwap();
+        }
       }
+      if (verbose || searchStrategy != RESOLVE_SEARCH)
+        logger.log("Metric evaluations = " + evaluations + ", best at " + bestEvaluation);
       logger.log("\n");
-      graph.restoreMatches();
     }
+    if (intCosts && verbose)
+      logger.log("Solves that overflowed int costs = " + graph.intFallbacks);
     long stopTime = System.currentTimeMillis();
-    displayMatches(bestCycles, logger);
+    for (BestSolutions b : best) {
+      for (int i = 0; i < b.solutions.size(); i++) {
+        BestSolutions.Solution solution = b.solutions.get(i);
+        if (several) {
+          String which = topSolutions > 1 ? "SOLUTION " + (i+1) + " OF " + b.solutions.size() : "BEST";
+          logger.log(which + " FOR METRIC=" + b.name + " " + solution.description
+                     + " (evaluation " + solution.evaluation + "):");
+          logger.log();
+        }
+        graph.restoreMatching(solution.matching);
+        List<List<Graph.Vertex>> bestCycles = graph.collectCycles(solution.matching.order);
+        graph.elideDummies();
+        displayMatches(bestCycles, logger);
+        if (several) logger.log("\n");
+      }
+    }
 
     if (showElapsedTime)
       logger.log("Elapsed time = " + (stopTime-startTime) + "ms");
   }
 
+  void logBest(BestSolutions b, boolean several, Logger logger) throws IOException {
+    if (several) logger.log(b.name + " " + b.metric);
+    else logger.log(b.metric.toString());
+  }
+
   boolean caseSensitive = false;
   boolean requireColons = false;
   boolean requireUsernames = false;
@@ -241,6 +444,16 @@ public class TradeMaximizer {
   boolean sortByItem = false;
   boolean allowDummies = false;
   boolean showElapsedTime = false;
+  boolean compressItems = false;
+  boolean contractDummies = false;
+  boolean localityOrder = false;
+  boolean randomTies = false;
+  boolean intCosts = false;
+  boolean preview = false;
+  boolean cacheComponents = false;
+  boolean lowMemory = false;
+  File saveSnapshot = null;
+  File loadSnapshot = null;
   long seed = -1;
 
   static final int NO_PRIORITIES = 0;
@@ -257,18 +470,38 @@ public class TradeMaximizer {
 
   int iterations = 1;
 
+  static final int RESOLVE_SEARCH = 0;
+  static final int TIGHT_SEARCH = 1;
+  static final int ANNEAL_SEARCH = 2;
+
+  int searchStrategy = RESOLVE_SEARCH;
+  long timeLimit = 0; // milliseconds, 0 for none
+  int stopAfterNoImprovement = 0; // iterations, 0 for never
+  int threads = 1;
+  int sparsify = 0; // wants per item in the first solve, 0 for all
+
   boolean verbose = false;
   boolean debug = false;
   
   //////////////////////////////////////////////////////////////////////
   
   List<String> options = new ArrayList<String>();
+  List<String> optionLines = new ArrayList<String>(); // as written, for SAVE-SNAPSHOT
   HashSet<String> officialNames = null;
   List<String> usedNames = new ArrayList<String>();
   
+  // where readWantLists gets its lines, see also MappedInput
+  interface LineSource {
+    String readLine() throws IOException;
+  }
+
   List<String[]> readWantLists(InputStream istream, FatalError err) throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(istream));
+    return readWantLists(in::readLine, err);
+  }
+
+  List<String[]> readWantLists(LineSource in, FatalError err) throws IOException {
     try {
-      BufferedReader in = new BufferedReader(new InputStreamReader(istream));
       List<String[]> wantLists = new ArrayList<String[]>();
       boolean readingOfficialNames = false;
 
@@ -278,11 +511,12 @@ public class TradeMaximizer {
 
         line = line.trim();
         if (line.length() == 0) continue; // skip blank link
-        if (line.matches("#!.*")) { // declare options
+        if (line.startsWith("#!")) { // declare options
           if (wantLists.size() > 0)
             err.fatalError("Options (#!...) cannot be declared after first real want list", lineNumber);
           if (officialNames != null)
             err.fatalError("Options (#!...) cannot be declared after official names", lineNumber);
+          optionLines.add(line);
           for (String option : line.toUpperCase().substring(2).trim().split("\\s+")) {
             if (option.equals("CASE-SENSITIVE"))
               caseSensitive = true;
@@ -310,6 +544,22 @@ public class TradeMaximizer {
               allowDummies = true;
             else if (option.equals("SHOW-ELAPSED-TIME"))
               showElapsedTime = true;
+            else if (option.equals("LOW-MEMORY"))
+              lowMemory = true;
+            else if (option.equals("CACHE-COMPONENTS"))
+              cacheComponents = true;
+            else if (option.equals("PREVIEW"))
+              preview = true;
+            else if (option.equals("INT-COSTS"))
+              intCosts = true;
+            else if (option.equals("COMPRESS-ITEMS"))
+              compressItems = true;
+            else if (option.equals("CONTRACT-DUMMIES"))
+              contractDummies = true;
+            else if (option.equals("LOCALITY-ORDER"))
+              localityOrder = true;
+            else if (option.equals("RANDOM-TIES"))
+              randomTies = true;
             else if (option.equals("LINEAR-PRIORITIES"))
               priorityScheme = LINEAR_PRIORITIES;
             else if (option.equals("TRIANGLE-PRIORITIES"))
@@ -321,35 +571,56 @@ public class TradeMaximizer {
             else if (option.equals("EXPLICIT-PRIORITIES"))
               priorityScheme = EXPLICIT_PRIORITIES;
             else if (option.startsWith("SMALL-STEP=")) {
-              String num = option.substring(11);
-              if (!num.matches("\\d+"))
-                err.fatalError("SMALL-STEP argument must be a non-negative integer",lineNumber);
-              smallStep = Integer.parseInt(num);
+              long num = number("SMALL-STEP", option.substring(11), true, Integer.MAX_VALUE, err, lineNumber);
+              if (num >= 0) smallStep = (int)num;
             }
             else if (option.startsWith("BIG-STEP=")) {
-              String num = option.substring(9);
-              if (!num.matches("\\d+"))
-                err.fatalError("BIG-STEP argument must be a non-negative integer",lineNumber);
-              bigStep = Integer.parseInt(num);
+              long num = number("BIG-STEP", option.substring(9), true, Integer.MAX_VALUE, err, lineNumber);
+              if (num >= 0) bigStep = (int)num;
             }
             else if (option.startsWith("NONTRADE-COST=")) {
-              String num = option.substring(14);
-              if (!num.matches("[1-9]\\d*"))
-                err.fatalError("NONTRADE-COST argument must be a positive integer",lineNumber);
-              nonTradeCost = Long.parseLong(num);
+              long num = number("NONTRADE-COST", option.substring(14), false, Long.MAX_VALUE, err, lineNumber);
+              if (num > 0) nonTradeCost = num;
             }
             else if (option.startsWith("ITERATIONS=")) {
-              String num = option.substring(11);
-              if (!num.matches("[1-9]\\d*"))
-                err.fatalError("ITERATIONS argument must be a positive integer",lineNumber);
-              iterations = Integer.parseInt(num);
+              long num = number("ITERATIONS", option.substring(11), false, Integer.MAX_VALUE, err, lineNumber);
+              if (num > 0) iterations = (int)num;
+            }
+            else if (option.startsWith("SEARCH=")) {
+              String strategy = option.substring(7);
+              if (strategy.equals("RESOLVE"))
+                searchStrategy = RESOLVE_SEARCH;
+              else if (strategy.equals("TIGHT-CYCLES"))
+                searchStrategy = TIGHT_SEARCH;
+              else if (strategy.equals("ANNEAL"))
+                searchStrategy = ANNEAL_SEARCH;
+              else
+                err.fatalError("Unknown search option \""+strategy+"\"",lineNumber);
+            }
+            else if (option.startsWith("TIME-LIMIT=")) {
+              long num = number("TIME-LIMIT", option.substring(11), false, Long.MAX_VALUE, err, lineNumber);
+              if (num > 0) timeLimit = num;
+            }
+            else if (option.startsWith("STOP-AFTER-NO-IMPROVEMENT=")) {
+              long num = number("STOP-AFTER-NO-IMPROVEMENT", option.substring(26), false, Integer.MAX_VALUE, err, lineNumber);
+              if (num > 0) stopAfterNoImprovement = (int)num;
+            }
+            else if (option.startsWith("SAVE-SNAPSHOT="))
+              saveSnapshot = new File(rawArgument(line, option));
+            else if (option.startsWith("SPARSIFY=")) {
+              long num = number("SPARSIFY", option.substring(9), false, Integer.MAX_VALUE, err, lineNumber);
+              if (num > 0) sparsify = (int)num;
+            }
+            else if (option.startsWith("THREADS=")) {
+              long num = number("THREADS", option.substring(8), false, Integer.MAX_VALUE, err, lineNumber);
+              if (num > 0) threads = (int)num;
             }
             else if (option.startsWith("SEED=")) {
-              String num = option.substring(5);
-              if (!num.matches("[1-9]\\d*"))
-                err.fatalError("SEED argument must be a positive integer",lineNumber);
-              seed = Long.parseLong(num);
-              graph.setSeed(seed);
+              long num = number("SEED", option.substring(5), false, Long.MAX_VALUE, err, lineNumber);
+              if (num > 0) {
+                seed = num;
+                graph.setSeed(seed);
+              }
             }
             else if (option.equals("VERBOSE"))
               verbose = true;
@@ -357,20 +628,13 @@ public class TradeMaximizer {
               debug = true;
             else if (option.startsWith("METRIC=")) {
               String met = option.substring(7);
-              if (met.matches("USERS-TRADING"))
-                metric = new MetricUsersTrading();
-              else if (met.matches("USERS-SOS"))
-                metric = new MetricUsersSumOfSquares();
-              else if (met.startsWith("FAVOR-USER=")) {
-                String user = met.substring(11);
-                metric = new MetricFavorUser(user);
-              }
-              else if (met.matches("CHAIN-SIZES-SOS")) {
-                // This is the default
-              }
-	      else
+              if (!setMetrics(met))
                 err.fatalError("Unknown metric option \""+met+"\"",lineNumber);
             }
+            else if (option.startsWith("TOP-SOLUTIONS=")) {
+              long num = number("TOP-SOLUTIONS", option.substring(14), false, Integer.MAX_VALUE, err, lineNumber);
+              if (num > 0) topSolutions = (int)num;
+            }
             else
               err.fatalError("Unknown option \""+option+"\"",lineNumber);
 
@@ -378,7 +642,7 @@ public class TradeMaximizer {
           }
           continue;
         }
-        if (line.matches("#.*")) continue; // skip comment line
+        if (line.startsWith("#")) continue; // skip comment line
         if (line.indexOf("#") != -1) {
           if (readingOfficialNames) {
             if (line.split("[:\\s]")[0].indexOf("#") != -1) {
@@ -425,14 +689,14 @@ public class TradeMaximizer {
         if (line.indexOf("(") == -1 && requireUsernames)
           err.fatalError("Missing username with REQUIRE-USERNAMES selected",lineNumber);
         if (line.charAt(0) == '(') {
-          if (line.lastIndexOf("(") > 0)
+          if (line.lastIndexOf('(') > 0)
             err.fatalError("Cannot have more than one '(' per line",lineNumber);
           int close = line.indexOf(")");
           if (close == -1)
             err.fatalError("Missing ')' in username",lineNumber);
           if (close == line.length()-1)
             err.fatalError("Username cannot appear on a line by itself",lineNumber);
-          if (line.lastIndexOf(")") > close)
+          if (line.lastIndexOf(')') > close)
             err.fatalError("Cannot have more than one ')' per line",lineNumber);
           if (close == 1)
             err.fatalError("Cannot have empty parentheses",lineNumber);
@@ -450,7 +714,7 @@ public class TradeMaximizer {
 
           
         // check semicolons
-        line = line.replaceAll(";"," ; ");
+        if (line.indexOf(';') != -1) line = line.replace(";"," ; ");
         int semiPos = line.indexOf(";");
         if (semiPos != -1) {
           if (semiPos < line.indexOf(":"))
@@ -463,19 +727,19 @@ public class TradeMaximizer {
         // check and remove colon
         int colonPos = line.indexOf(":");
         if (colonPos != -1) {
-          if (line.lastIndexOf(":") != colonPos)
+          if (line.lastIndexOf(':') != colonPos)
             err.fatalError("Cannot have more that one colon on a line",lineNumber);
           String header = line.substring(0,colonPos).trim();
-          if (!header.matches("(.*\\)\\s+)?[^(\\s)]\\S*"))
+          if (!HEADER.matcher(header).matches())
             err.fatalError("Must have exactly one item before a colon (:)",lineNumber);
-          line = line.replaceFirst(":"," "); // remove colon
+          line = line.substring(0,colonPos) + " " + line.substring(colonPos+1); // remove colon
         }
         else if (requireColons) {
           err.fatalError("Missing colon with REQUIRE-COLONS selected",lineNumber);
         }
 
         if (!caseSensitive) line = line.toUpperCase();
-        wantLists.add(line.trim().split("\\s+"));
+        wantLists.add(tokens(line.trim()));
       }
     }
     catch(Exception e) {
@@ -484,9 +748,93 @@ public class TradeMaximizer {
     }
   }
 
+  private static final Pattern HEADER = Pattern.compile("(.*\\)\\s+)?[^(\\s)]\\S*");
+
+  // line.split("\\s+") for a trimmed line, without going through a regex
+  static String[] tokens(String line) {
+    int count = 0;
+    for (int i = 0; i < line.length(); i++) {
+      if (!isSpace(line.charAt(i)) && (i == 0 || isSpace(line.charAt(i-1)))) count++;
+    }
+    String[] tokens = new String[count];
+    int k = 0;
+    for (int i = 0; i < line.length(); ) {
+      while (i < line.length() && isSpace(line.charAt(i))) i++;
+      int start = i;
+      while (i < line.length() && !isSpace(line.charAt(i))) i++;
+      if (i > start) tokens[k++] = line.substring(start, i);
+    }
+    return tokens;
+  }
+
+  private static boolean isSpace(char c) { // as \s
+    return c == ' ' || c == '\t' || c == '\n' || c == '\013' || c == '\f' || c == '\r';
+  }
+
+  // The argument of a numeric option, with the same checks whether it comes
+  // from a #! line or from the command line (lineNumber 0): a positive
+  // integer, or a non-negative one if zeroOk, no larger than max.  Returns
+  // -1 once a bad argument has been reported through err, so the option
+  // keeps its default.
+  private long number(String option, String num, boolean zeroOk, long max,
+                      FatalError err, int lineNumber) throws IOException {
+    String msg = option + " argument must be a " + (zeroOk ? "non-negative" : "positive") + " integer";
+    if (num != null && num.matches(zeroOk ? "\\d+" : "[1-9]\\d*")) {
+      if (num.length() <= 18 && Long.parseLong(num) <= max) return Long.parseLong(num);
+      msg = option + " argument must be at most " + max;
+    }
+    if (lineNumber > 0) err.fatalError(msg, lineNumber);
+    else err.fatalError(msg);
+    return -1;
+  }
+
+  // the argument of an option such as SAVE-SNAPSHOT=file as it was
+  // written, since the options are read upper case
+  private static String rawArgument(String line, String option) {
+    for (String token : line.substring(2).trim().split("\\s+")) {
+      if (token.equalsIgnoreCase(option)) return token.substring(token.indexOf('=') + 1);
+    }
+    return option.substring(option.indexOf('=') + 1);
+  }
+
+  // METRIC= takes one metric or a comma separated list of them, which are
+  // all tracked at once; the first is the one SEARCH=ANNEAL follows.
+  boolean setMetrics(String list) {
+    List<Metrics> found = new ArrayList<Metrics>();
+    List<String> names = new ArrayList<String>();
+    for (String met : list.split(",")) {
+      met = met.trim();
+      if (met.matches("USERS-TRADING"))
+        found.add(new MetricUsersTrading());
+      else if (met.matches("USERS-SOS"))
+        found.add(new MetricUsersSumOfSquares());
+      else if (met.startsWith("FAVOR-USER=")) {
+        String user = met.substring(11);
+        found.add(new MetricFavorUser(user));
+      }
+      else if (met.matches("CHAIN-SIZES-SOS"))
+        found.add(new MetricSumSquares()); // the default
+      else
+        return false;
+      names.add(met);
+    }
+    metrics = found;
+    metricNames = names;
+    metric = found.get(0);
+    return true;
+  }
+
+  // after a collection, so only what is still reachable counts
+  static long heapUsed() {
+    Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
   String parseArgs(String[] args, boolean doit, FatalError err, Logger logger) throws IOException {
     int c, optind;
-    LongOpt[] longopts = new LongOpt[22];
+    long num;
+    LongOpt[] longopts = new LongOpt[38];
 
     longopts[0] = new LongOpt("help",
         LongOpt.NO_ARGUMENT, null, 'h');
@@ -532,9 +880,42 @@ public class TradeMaximizer {
         LongOpt.REQUIRED_ARGUMENT, null, 'M');
     longopts[21] = new LongOpt("verbose",
         LongOpt.NO_ARGUMENT, null, 'v');
+    longopts[22] = new LongOpt("threads",
+        LongOpt.REQUIRED_ARGUMENT, null, 'j');
+    longopts[23] = new LongOpt("compress-items",
+        LongOpt.OPTIONAL_ARGUMENT, null, 'z');
+    longopts[24] = new LongOpt("contract-dummies",
+        LongOpt.OPTIONAL_ARGUMENT, null, 'D');
+    longopts[25] = new LongOpt("locality-order",
+        LongOpt.OPTIONAL_ARGUMENT, null, 'L');
+    longopts[26] = new LongOpt("search",
+        LongOpt.REQUIRED_ARGUMENT, null, 'x');
+    longopts[27] = new LongOpt("time-limit",
+        LongOpt.REQUIRED_ARGUMENT, null, 'k');
+    longopts[28] = new LongOpt("stop-after-no-improvement",
+        LongOpt.REQUIRED_ARGUMENT, null, 'P');
+    longopts[29] = new LongOpt("random-ties",
+        LongOpt.OPTIONAL_ARGUMENT, null, 'R');
+    longopts[30] = new LongOpt("top-solutions",
+        LongOpt.REQUIRED_ARGUMENT, null, 'K');
+    longopts[31] = new LongOpt("sparsify",
+        LongOpt.REQUIRED_ARGUMENT, null, 'y');
+    longopts[32] = new LongOpt("int-costs",
+        LongOpt.OPTIONAL_ARGUMENT, null, 'Q');
+    longopts[33] = new LongOpt("preview",
+        LongOpt.OPTIONAL_ARGUMENT, null, 'V');
+    longopts[34] = new LongOpt("cache-components",
+        LongOpt.OPTIONAL_ARGUMENT, null, 'A');
+    longopts[35] = new LongOpt("low-memory",
+        LongOpt.OPTIONAL_ARGUMENT, null, 'O');
+    longopts[36] = new LongOpt("save-snapshot",
+        LongOpt.REQUIRED_ARGUMENT, null, 'Y');
+    longopts[37] = new LongOpt("load-snapshot",
+        LongOpt.REQUIRED_ARGUMENT, null, 'W');
 
     Getopt g = new Getopt("TradeMaximizer", args,
-        "hdculsnetrCim:b:N:S:I:p:GTM:v", longopts);
+        "hdculsnetrCim:b:N:S:I:p:GTM:vj:zDLx:k:P:RK:y:QVAOY:W:", longopts);
+    g.setOpterr(doit); // the first pass would repeat the complaints
 
     while( (c = g.getopt()) != -1 ) {
       String arg = g.getOptarg();
@@ -543,7 +924,13 @@ public class TradeMaximizer {
                            || arg.equalsIgnoreCase("off") || arg.equals("0")))
         bool = false;
 
-      if (doit) switch( c ) {
+      // before the input is read, only what decides how to read it
+      if (!doit) {
+        if (c == 'W') loadSnapshot = new File(arg);
+        continue;
+      }
+
+      switch( c ) {
         case 'h' :
           System.err.println("TradeMaximizer " + version + "\n" +
 "Please see http://www.boardgamegeek.com/wiki/page/TradeMaximizer for details\n"
@@ -567,16 +954,55 @@ public class TradeMaximizer {
         case 'r' : showRepeats = ! bool; break;
         case 'C' : caseSensitive = bool; break;
         case 'i' : sortByItem = bool; break;
-        case 'm' : smallStep = Integer.parseInt(arg); break;
-        case 'b' : bigStep = Integer.parseInt(arg); break;
-        case 'N' : nonTradeCost = Long.parseLong(arg); break;
-        case 'I' : iterations = Integer.parseInt(arg); break;
+        case 'm' :
+          num = number("--small-step", arg, true, Integer.MAX_VALUE, err, 0);
+          if (num >= 0) smallStep = (int)num;
+          break;
+        case 'b' :
+          num = number("--big-step", arg, true, Integer.MAX_VALUE, err, 0);
+          if (num >= 0) bigStep = (int)num;
+          break;
+        case 'N' :
+          num = number("--nontrade-cost", arg, false, Long.MAX_VALUE, err, 0);
+          if (num > 0) nonTradeCost = num;
+          break;
+        case 'I' :
+          num = number("--iterations", arg, false, Integer.MAX_VALUE, err, 0);
+          if (num > 0) iterations = (int)num;
+          break;
+        case 'j' :
+          num = number("--threads", arg, false, Integer.MAX_VALUE, err, 0);
+          if (num > 0) threads = (int)num;
+          break;
+        case 'y' :
+          num = number("--sparsify", arg, false, Integer.MAX_VALUE, err, 0);
+          if (num > 0) sparsify = (int)num;
+          break;
+        case 'k' :
+          num = number("--time-limit", arg, false, Long.MAX_VALUE, err, 0);
+          if (num > 0) timeLimit = num;
+          break;
+        case 'P' :
+          num = number("--stop-after-no-improvement", arg, false, Integer.MAX_VALUE, err, 0);
+          if (num > 0) stopAfterNoImprovement = (int)num;
+          break;
         case 'G' : showMissing = bool; break;
         case 'v' : verbose = bool; break;
         case 'T' : showElapsedTime = bool; break;
+        case 'z' : compressItems = bool; break;
+        case 'D' : contractDummies = bool; break;
+        case 'L' : localityOrder = bool; break;
+        case 'R' : randomTies = bool; break;
+        case 'Q' : intCosts = bool; break;
+        case 'V' : preview = bool; break;
+        case 'A' : cacheComponents = bool; break;
+        case 'O' : lowMemory = bool; break;
         case 'S' :
-          seed = Long.parseLong(arg);
-          graph.setSeed(seed);
+          num = number("--seed", arg, false, Long.MAX_VALUE, err, 0);
+          if (num > 0) {
+            seed = num;
+            graph.setSeed(seed);
+          }
           break;
         case 'p' :
           if( arg == null ) arg = "linear";
@@ -596,21 +1022,27 @@ public class TradeMaximizer {
 	  else
             err.fatalError("Unknown priority type: " + arg);
           break;
+        case 'x' :
+          if( arg.equalsIgnoreCase("resolve") )
+            searchStrategy = RESOLVE_SEARCH;
+          else if( arg.equalsIgnoreCase("tight-cycles") )
+            searchStrategy = TIGHT_SEARCH;
+          else if( arg.equalsIgnoreCase("anneal") )
+            searchStrategy = ANNEAL_SEARCH;
+          else
+            err.fatalError("Unknown search strategy: " + arg);
+          break;
         case 'M' :
           String met = arg.toUpperCase();
-          if (met.matches("USERS-TRADING"))
-            metric = new MetricUsersTrading();
-          else if (met.matches("USERS-SOS"))
-            metric = new MetricUsersSumOfSquares();
-          else if (met.startsWith("FAVOR-USER=")) {
-            String user = met.substring(11);
-            metric = new MetricFavorUser(user);
-          }
-          else if (met.matches("CHAIN-SIZES-SOS"))
-            metric = new MetricSumSquares();
-          else
+          if (!setMetrics(met))
             err.fatalError("Unknown metric: " + met);
           break;
+        case 'K' :
+          num = number("--top-solutions", arg, false, Integer.MAX_VALUE, err, 0);
+          if (num > 0) topSolutions = (int)num;
+          break;
+        case 'Y' : saveSnapshot = new File(arg); break;
+        case 'W' : break; // taken before the input was read
         case '?' :
 	  err.fatalError("Exiting due to unknown or badly form command line option");
           break;
@@ -655,6 +1087,7 @@ public class TradeMaximizer {
 
   int ITEMS; // the number of items being traded (including dummy items)
   int DUMMY_ITEMS; // the number of dummy items
+  int contractedDummies; // dummy items removed by CONTRACT-DUMMIES
 
   String[] deleteFirst(String[] a) {
     assert a.length > 0;
@@ -716,116 +1149,124 @@ public class TradeMaximizer {
     // create the edges
     for (String[] list : wantLists) {
       if (list == null) continue; // skip the duplicate lists
-      String fromName = list[0];
-      Graph.Vertex fromVertex = graph.getVertex(fromName);
+      addWants(list, unknowns);
+    }
 
-      // add the "no-trade" edge to itself
-      graph.addEdge(fromVertex,fromVertex.twin,nonTradeCost);
+    if (contractDummies) contractedDummies = graph.contractDummies();
+    graph.freeze();
 
-      long rank = 1;
-      for (int i = 1; i < list.length; i++) {
-        String toName = list[i];
-        if (toName.equals(";")) {
-          rank += bigStep;
-          continue;
-        }
-        if (toName.indexOf('=') >= 0) {
-          if (priorityScheme != EXPLICIT_PRIORITIES) {
-            errors.add("**** Cannot use '=' annotation in item "+toName+" in want list for item "+fromName+" unless using EXPLICIT_PRIORITIES.");
-            continue;
-          }
-          if (!toName.matches("[^=]+=[0-9]+")) {
-            errors.add("**** Item "+toName+" in want list for item "+fromName+" must have the format 'name=number'.");
-            continue;
-          }
-          String[] parts = toName.split("=");
-          assert(parts.length == 2);
-          long explicitCost = Long.parseLong(parts[1]);
-          if (explicitCost < 1) {
-            errors.add("**** Explicit priority must be positive in item "+toName+" in want list for item "+fromName+".");
-            continue;
-          }
-          rank = explicitCost;
-          toName = parts[0];
-        }
-        if (toName.charAt(0) == '%') {
-          if (fromVertex.user == null) {
-            errors.add("**** Dummy item " + toName + " used in want list for item " + fromName + ", which does not have a username.");
-            continue;
-          }
+    for (Map.Entry< String,Integer > entry : unknowns.entrySet()) {
+      String item = entry.getKey();
+      int occurrences = entry.getValue();
+      String plural = occurrences == 1 ? "" : "s";
+      errors.add("**** Unknown item " + item + " (" + occurrences + " occurrence" + plural + ")");
+    }
+
+  } // end buildGraph
 
-          toName += " for user " + fromVertex.user; 
+  // Adds the edges for one want list, whose first entry is the name of the
+  // item itself, including the no-trade edge.  Shared by buildGraph and
+  // TradeSession.
+  void addWants(String[] list, Map< String,Integer > unknowns) {
+    String fromName = list[0];
+    Graph.Vertex fromVertex = graph.getVertex(fromName);
+
+    // add the "no-trade" edge to itself
+    graph.addEdge(fromVertex,fromVertex.twin,nonTradeCost);
+
+    long rank = 1;
+    for (int i = 1; i < list.length; i++) {
+      String toName = list[i];
+      if (toName.equals(";")) {
+        rank += bigStep;
+        continue;
+      }
+      if (toName.indexOf('=') >= 0) {
+        if (priorityScheme != EXPLICIT_PRIORITIES) {
+          errors.add("**** Cannot use '=' annotation in item "+toName+" in want list for item "+fromName+" unless using EXPLICIT_PRIORITIES.");
+          continue;
         }
-        Graph.Vertex toVertex = graph.getVertex(toName);
-        if (toVertex == null) {
-          if (officialNames != null && officialNames.contains(toName)) {
-            // this is an official item whose owner did not submit a want list
-            rank += smallStep;            
-          }
-          else {
-            int occurrences = unknowns.containsKey(toName) ? unknowns.get(toName) : 0;
-            unknowns.put(toName,occurrences + 1);
-          }
+        if (!toName.matches("[^=]+=[0-9]+")) {
+          errors.add("**** Item "+toName+" in want list for item "+fromName+" must have the format 'name=number'.");
           continue;
         }
-        
-        toVertex = toVertex.twin; // adjust to the sending vertex
-        if (toVertex == fromVertex.twin) {
-          errors.add("**** Item " + toName + " appears in its own want list.");
+        String[] parts = toName.split("=");
+        assert(parts.length == 2);
+        long explicitCost = Long.parseLong(parts[1]);
+        if (explicitCost < 1) {
+          errors.add("**** Explicit priority must be positive in item "+toName+" in want list for item "+fromName+".");
+          continue;
         }
-        else if (graph.getEdge(fromVertex,toVertex) != null) {
-          if (showRepeats)
-            errors.add("**** Item " + toName + " is repeated in want list for " + fromName + ".");
+        rank = explicitCost;
+        toName = parts[0];
+      }
+      if (toName.charAt(0) == '%') {
+        if (fromVertex.user == null) {
+          errors.add("**** Dummy item " + toName + " used in want list for item " + fromName + ", which does not have a username.");
+          continue;
         }
-        else if (!toVertex.isDummy &&
-                 fromVertex.user != null &&
-                 fromVertex.user.equals(toVertex.user)) {
-          errors.add("**** Item "+fromVertex.name +" contains item "+toVertex.name+" from the same user ("+fromVertex.user+")");
+
+        toName += " for user " + fromVertex.user; 
+      }
+      Graph.Vertex toVertex = graph.getVertex(toName);
+      if (toVertex == null) {
+        if (officialNames != null && officialNames.contains(toName)) {
+          // this is an official item whose owner did not submit a want list
+          rank += smallStep;            
         }
         else {
-          long cost = UNIT;
-          switch (priorityScheme) {
-            case LINEAR_PRIORITIES:   cost = rank; break;
-            case TRIANGLE_PRIORITIES: cost = rank*(rank+1)/2; break;
-            case SQUARE_PRIORITIES:   cost = rank*rank; break;
-            case SCALED_PRIORITIES:   cost = rank; break; // assign later
-            case EXPLICIT_PRIORITIES: cost = rank; break;
-          }
-
-          // all edges out of a dummy node have the same cost
-          if (fromVertex.isDummy) cost = nonTradeCost;
-
-          graph.addEdge(fromVertex,toVertex,cost);
-
-          rank += smallStep;
+          int occurrences = unknowns.containsKey(toName) ? unknowns.get(toName) : 0;
+          unknowns.put(toName,occurrences + 1);
         }
+        continue;
       }
-
-      // update costs for those priority schemes that need information such as
-      // number of wants
-      if (!fromVertex.isDummy) {
+      
+      toVertex = toVertex.twin; // adjust to the sending vertex
+      if (toVertex == fromVertex.twin) {
+        errors.add("**** Item " + toName + " appears in its own want list.");
+      }
+      else if (graph.getEdge(fromVertex,toVertex) != null) {
+        if (showRepeats)
+          errors.add("**** Item " + toName + " is repeated in want list for " + fromName + ".");
+      }
+      else if (!toVertex.isDummy &&
+               fromVertex.user != null &&
+               fromVertex.user.equals(toVertex.user)) {
+        errors.add("**** Item "+fromVertex.name +" contains item "+toVertex.name+" from the same user ("+fromVertex.user+")");
+      }
+      else {
+        long cost = UNIT;
         switch (priorityScheme) {
-          case SCALED_PRIORITIES:
-            int n = fromVertex.edges.size()-1;
-            for (Graph.Edge edge : fromVertex.edges) {
-              if (edge.sender != fromVertex.twin)
-                edge.cost = 1 + (edge.cost-1)*2520/n;
-            }
-            break;
+          case LINEAR_PRIORITIES:   cost = rank; break;
+          case TRIANGLE_PRIORITIES: cost = rank*(rank+1)/2; break;
+          case SQUARE_PRIORITIES:   cost = rank*rank; break;
+          case SCALED_PRIORITIES:   cost = rank; break; // assign later
+          case EXPLICIT_PRIORITIES: cost = rank; break;
         }
-      }
-    }
 
-    graph.freeze();
+        // all edges out of a dummy node have the same cost
+        if (fromVertex.isDummy) cost = nonTradeCost;
 
-    for (Map.Entry< String,Integer > entry : unknowns.entrySet()) {
-      String item = entry.getKey();
-      int occurrences = entry.getValue();
-      String plural = occurrences == 1 ? "" : "s";
-      errors.add("**** Unknown item " + item + " (" + occurrences + " occurrence" + plural + ")");
+        graph.addEdge(fromVertex,toVertex,cost);
+
+        rank += smallStep;
+      }
     }
 
-  } // end buildGraph
+    // update costs for those priority schemes that need information such as
+    // number of wants
+    if (!fromVertex.isDummy) {
+      switch (priorityScheme) {
+        case SCALED_PRIORITIES:
+          int n = fromVertex.edges.size()-1;
+          for (Graph.Edge edge : fromVertex.edges) {
+            if (edge.sender != fromVertex.twin)
+              edge.cost = 1 + (edge.cost-1)*2520/n;
+          }
+          break;
+      }
+    }
+  }
 
   String show(Graph.Vertex vertex) {
     if (vertex.user == null || vertex.isDummy) return vertex.name;
@@ -0,0 +1,210 @@
+package io.github.ragan.trademaximizer;
+
+import java.io.*;
+import java.util.*;
+
+// A long-lived solver for one set of want lists.  The input is read and
+// solved once, as by TradeMaximizer.run, and after that the want list of
+// a single item can be replaced and the result is repaired in place (see
+// Graph.repair) instead of being solved again from scratch.
+//
+// Items are named as in the input, and a dummy item by its full name, as
+// in "%CASH for user (ALICE)".  Options come from the #! lines and args as
+// usual, except that CONTRACT-DUMMIES is ignored, since a later want list
+// may name any dummy.
+public class TradeSession {
+
+  private final TradeMaximizer maximizer;
+  private final Graph graph;
+  private final Map< String,String[] > wantLists = new HashMap< String,String[] >();
+
+  public TradeSession(String[] args, InputStream istream, OutputStream ostream) throws IOException {
+    maximizer = new TradeMaximizer();
+    graph = maximizer.graph;
+    TradeMaximizer.FatalError err = maximizer.new FatalError(ostream);
+    List< String[] > lists = maximizer.readWantLists(istream, err);
+    if (lists == null) throw new IOException("Cannot read want lists");
+    maximizer.parseArgs(args, true, err, maximizer.new Logger(ostream));
+    maximizer.contractDummies = false;
+
+    maximizer.buildGraph(lists);
+    for (String[] list : lists) {
+      if (list != null) wantLists.put(list[0], list);
+    }
+    graph.setThreads(maximizer.threads);
+    graph.compressItems = maximizer.compressItems;
+    graph.sparsify = maximizer.sparsify;
+    graph.unitCosts = maximizer.priorityScheme == TradeMaximizer.NO_PRIORITIES;
+    graph.startIncremental();
+    graph.findCycles();
+  }
+
+  private String name(String name) {
+    return maximizer.caseSensitive ? name : name.toUpperCase();
+  }
+
+  private Graph.Vertex item(String name) {
+    Graph.Vertex vertex = graph.getVertex(name);
+    if (vertex == null || !wantLists.containsKey(name))
+      throw new IllegalArgumentException("Unknown item " + name);
+    return vertex;
+  }
+
+  // The want list of an item, as in the input but without the item itself.
+  public List<String> getWants(String item) {
+    String[] list = wantLists.get(name(item));
+    if (list == null) throw new IllegalArgumentException("Unknown item " + item);
+    return Arrays.asList(list).subList(1, list.length);
+  }
+
+  // Replaces the want list of an item and returns the number of items that
+  // had to be matched again.  Wants that are in error are skipped, as they
+  // would be in the input, and reported by getErrors.
+  public int setWants(String item, List<String> wants) {
+    return graph.repair(replaceWants(item, wants));
+  }
+
+  // replaces the edges, leaving the components and matching to the caller
+  private Graph.Vertex replaceWants(String item, List<String> wants) {
+    item = name(item);
+    Graph.Vertex receiver = item(item);
+    String[] list = new String[wants.size() + 1];
+    list[0] = item;
+    for (int i = 0; i < wants.size(); i++) list[i+1] = name(wants.get(i));
+
+    maximizer.errors.clear();
+    graph.clearEdges(receiver);
+    maximizer.addWants(list, new HashMap< String,Integer >());
+    wantLists.put(item, list);
+    return receiver;
+  }
+
+  public int addWant(String item, String want) {
+    List<String> wants = new ArrayList<String>(getWants(item));
+    wants.add(want);
+    return setWants(item, wants);
+  }
+
+  public int removeWant(String item, String want) {
+    List<String> wants = new ArrayList<String>(getWants(item));
+    if (!wants.remove(name(want))) return 0;
+    return setWants(item, wants);
+  }
+
+  // errors from the last change
+  public List<String> getErrors() {
+    return Collections.unmodifiableList(maximizer.errors);
+  }
+
+  // The current trade loops, each as a list of items where every item
+  // receives the one after it and the last receives the first.
+  public List<List<String>> getLoops() {
+    List<List<String>> loops = new ArrayList<List<String>>();
+    for (List<Graph.Vertex> cycle : graph.collectCycles()) {
+      List<String> loop = new ArrayList<String>();
+      for (Graph.Vertex v : cycle) loop.add(maximizer.show(v));
+      loops.add(loop);
+    }
+    return loops;
+  }
+
+  // the total cost of the current matching, including the non-trades
+  public long getTotalCost() {
+    long cost = 0;
+    for (Graph.Vertex v : graph.RECEIVERS) cost += v.matchCost;
+    return cost;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+  // What-if queries.  The change is made and repaired as by setWants and
+  // the result is compared with the current one.  Then the old want list
+  // is put back and the saved components, matching and prices restored,
+  // which leaves the session exactly as it was without repairing again.
+
+  public static class WhatIf {
+    public final List<List<String>> added; // loops only in the changed result
+    public final List<List<String>> removed; // loops only in the current one
+    public final int tradesDelta;
+    public final long costDelta;
+    public final List<String> errors;
+
+    WhatIf(List<List<String>> added, List<List<String>> removed,
+           int tradesDelta, long costDelta, List<String> errors) {
+      this.added = added;
+      this.removed = removed;
+      this.tradesDelta = tradesDelta;
+      this.costDelta = costDelta;
+      this.errors = errors;
+    }
+  }
+
+  public WhatIf whatIfSetWants(String item, List<String> wants) {
+    item = name(item);
+    List<String> oldWants = new ArrayList<String>(getWants(item));
+    List<List<String>> before = getLoops();
+    long beforeCost = getTotalCost();
+    int[] components = graph.saveComponents();
+    Graph.Matching saved = new Graph.Matching();
+    graph.saveMatching(saved);
+    long[] prices = graph.savePrices();
+
+    setWants(item, wants);
+    List<List<String>> after = getLoops();
+    long afterCost = getTotalCost();
+    List<String> errors = new ArrayList<String>(maximizer.errors);
+
+    replaceWants(item, oldWants);
+    maximizer.errors.clear();
+    graph.restoreComponents(components);
+    graph.restoreMatching(saved);
+    graph.restorePrices(prices);
+
+    Set<List<String>> beforeSet = canonical(before);
+    Set<List<String>> afterSet = canonical(after);
+    List<List<String>> added = new ArrayList<List<String>>();
+    List<List<String>> removed = new ArrayList<List<String>>();
+    for (List<String> loop : afterSet) {
+      if (!beforeSet.contains(loop)) added.add(loop);
+    }
+    for (List<String> loop : beforeSet) {
+      if (!afterSet.contains(loop)) removed.add(loop);
+    }
+    return new WhatIf(added, removed, trades(after) - trades(before),
+                      afterCost - beforeCost, errors);
+  }
+
+  public WhatIf whatIfAddWant(String item, String want) {
+    List<String> wants = new ArrayList<String>(getWants(item));
+    wants.add(want);
+    return whatIfSetWants(item, wants);
+  }
+
+  public WhatIf whatIfRemoveWant(String item, String want) {
+    List<String> wants = new ArrayList<String>(getWants(item));
+    wants.remove(name(want));
+    return whatIfSetWants(item, wants);
+  }
+
+  // as if the item were withdrawn: it keeps its place but cannot trade
+  public WhatIf whatIfWithdraw(String item) {
+    return whatIfSetWants(item, Collections.<String>emptyList());
+  }
+
+  // each loop rotated to start at its least item, so equal loops compare equal
+  private static Set<List<String>> canonical(List<List<String>> loops) {
+    Set<List<String>> set = new LinkedHashSet<List<String>>();
+    for (List<String> loop : loops) {
+      List<String> rotated = new ArrayList<String>(loop);
+      Collections.rotate(rotated, -rotated.indexOf(Collections.min(rotated)));
+      set.add(rotated);
+    }
+    return set;
+  }
+
+  private static int trades(List<List<String>> loops) {
+    int trades = 0;
+    for (List<String> loop : loops) trades += loop.size();
+    return trades;
+  }
+
+} // end TradeSession
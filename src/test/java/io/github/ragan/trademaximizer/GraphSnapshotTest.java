@@ -0,0 +1,95 @@
+package io.github.ragan.trademaximizer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GraphSnapshotTest {
+
+    // the whole output of a run, as in SolverTest.run
+    static String run(String[] args, byte[] input) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(out, true));
+        try {
+            new TradeMaximizer().run(args, new ByteArrayInputStream(input), out);
+        }
+        finally {
+            System.setOut(stdout);
+        }
+        return out.toString();
+    }
+
+    static void assertNotLoaded(File file) throws IOException {
+        TradeMaximizer tm = new TradeMaximizer();
+        try {
+            GraphSnapshot.load(tm, file, tm.new FatalError(new ByteArrayOutputStream()));
+            fail("loaded " + file);
+        }
+        catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        // mixed case, since the options are read upper case
+        File dir = Files.createTempDirectory("Snapshot").toFile();
+        File file = new File(dir, "Pref.bin");
+        try {
+            String saved = SolverTest.run("SAVE-SNAPSHOT=" + file.getPath());
+            assertTrue(file.isFile());
+            String loaded = run(new String[]{ "--load-snapshot=" + file.getPath() }, new byte[0]);
+            assertEquals(saved, loaded);
+
+            // the options that do not shape the graph still apply
+            String expected = SolverTest.run("INT-COSTS", "VERBOSE");
+            loaded = run(new String[]{ "--load-snapshot=" + file.getPath(), "--int-costs", "--verbose" }, new byte[0]);
+            SolverTest.assertSameResult(expected, loaded);
+        }
+        finally {
+            file.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void corruptFiles() throws IOException {
+        File dir = Files.createTempDirectory("Snapshot").toFile();
+        File file = new File(dir, "pref.bin");
+        File bad = new File(dir, "bad.bin");
+        try {
+            SolverTest.run("SAVE-SNAPSHOT=" + file.getPath());
+            byte[] bytes = Files.readAllBytes(file.toPath());
+
+            for (int length : new int[]{ 0, 5, 8, 100, bytes.length / 2, bytes.length - 1 }) {
+                Files.write(bad.toPath(), Arrays.copyOf(bytes, length));
+                assertNotLoaded(bad);
+            }
+
+            byte[] huge = bytes.clone(); // the length of the checksum
+            huge[8] = 0x7f;
+            Files.write(bad.toPath(), huge);
+            assertNotLoaded(bad);
+
+            byte[] magic = bytes.clone();
+            magic[0] ^= 1;
+            Files.write(bad.toPath(), magic);
+            assertNotLoaded(bad);
+        }
+        finally {
+            file.delete();
+            bad.delete();
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package io.github.ragan.trademaximizer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// The other solvers against the default one on pref.txt.  Every optimal
+// matching has the same trade count and total cost.
+public class SolverTest {
+
+    // the output of a run on pref.txt with the options added as #! lines;
+    // the statistics are printed straight to System.out, so that is caught too
+    static String run(String... options) throws IOException {
+        return run(pref(), options);
+    }
+
+    // without the LINEAR-PRIORITIES of pref.txt, so every trade costs the same
+    static String runUnit(String... options) throws IOException {
+        List<String> input = pref();
+        input.remove("#! LINEAR-PRIORITIES");
+        return run(input, options);
+    }
+
+    static List<String> pref() throws IOException {
+        return new ArrayList<String>(Files.readAllLines(Paths.get("src/test/resources/pref.txt")));
+    }
+
+    static String run(List<String> input, String... options) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        for (String option : options) lines.add("#! " + option);
+        lines.addAll(input);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(out, true));
+        try {
+            new TradeMaximizer().run(new String[]{},
+                new ByteArrayInputStream(String.join("\n", lines).getBytes()), out);
+        }
+        finally {
+            System.setOut(stdout);
+        }
+        return out.toString();
+    }
+
+    static String stat(String output, String name) {
+        Matcher m = Pattern.compile(name + " += (\\d+)").matcher(output);
+        assertTrue(name, m.find());
+        return m.group(1);
+    }
+
+    static void assertSameResult(String expected, String actual) {
+        assertFalse(actual.contains("FATAL ERROR"));
+        assertEquals(stat(expected, "Num trades"), stat(actual, "Num trades"));
+        assertEquals(stat(expected, "Total cost"), stat(actual, "Total cost"));
+    }
+
+    // the metric of every iteration, as VERBOSE logs them
+    static Set<String> iterations(String output) {
+        Set<String> found = new HashSet<String>();
+        Matcher m = Pattern.compile("(?m)^#? ?\\[ (\\d+) :").matcher(output);
+        while (m.find()) found.add(m.group(1));
+        return found;
+    }
+
+    static void assertNoFallback(String output) {
+        assertEquals("0", stat(output, "Solves that overflowed int costs"));
+    }
+
+    // at the usual non-trade cost, chains of untraded items in pref.txt
+    // would take the prices out of the int range without lift
+    @Test
+    public void intSolver() throws IOException {
+        String output = run("INT-COSTS", "VERBOSE");
+        assertNoFallback(output);
+        assertSameResult(run(), output);
+
+        output = runUnit("INT-COSTS", "VERBOSE");
+        assertNoFallback(output);
+        assertSameResult(runUnit(), output);
+        assertEquals("242", stat(output, "Total cost"));
+
+        // too small to stand for every trade, so it is solved as it is
+        output = run("INT-COSTS", "NONTRADE-COST=100", "VERBOSE");
+        assertNoFallback(output);
+        assertSameResult(run("NONTRADE-COST=100"), output);
+    }
+
+    // the search walks the edges that are tight under the prices the int
+    // solver hands back, so those must be right for the real costs
+    @Test
+    public void intSolverPrices() throws IOException {
+        String output = run("INT-COSTS", "SEARCH=TIGHT-CYCLES", "ITERATIONS=6", "SEED=1", "VERBOSE");
+        assertNoFallback(output);
+        assertSameResult(run(), output);
+        assertTrue(iterations(output).size() > 1);
+    }
+
+    @Test
+    public void intSolverKeepsTies() throws IOException {
+        String output = run("INT-COSTS", "RANDOM-TIES", "ITERATIONS=6", "SEED=1", "VERBOSE");
+        assertNoFallback(output);
+        assertSameResult(run(), output);
+        assertTrue(iterations(output).size() > 1);
+    }
+
+    @Test
+    public void compressedSolver() throws IOException {
+        assertSameResult(run(), run("COMPRESS-ITEMS"));
+        assertSameResult(runUnit(), runUnit("COMPRESS-ITEMS"));
+    }
+
+    @Test
+    public void compressedSolverFallsBack() throws IOException {
+        // no two items want the same, so there is nothing to compress
+        List<String> input = Arrays.asList("#! LINEAR-PRIORITIES", "A : B C", "B : C A", "C : A");
+        String output = run(input, "COMPRESS-ITEMS", "VERBOSE");
+        assertTrue(output.contains("Item classes = 3 for 3 items, too many to compress"));
+        assertSameResult(run(input), output);
+        assertEquals("3", stat(output, "Num trades"));
+    }
+
+    // the input with the want list of item emptied
+    static List<String> withdraw(List<String> input, String item) {
+        List<String> lines = new ArrayList<String>(input);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            int close = line.indexOf(')');
+            if (close >= 0 && line.startsWith(item + " :", close + 2))
+                lines.set(i, line.substring(0, close + 1) + " " + item + " :");
+        }
+        return lines;
+    }
+
+    static int[] cacheHits(String output) {
+        Matcher m = Pattern.compile("Cached components reused = (\\d+) of (\\d+)").matcher(output);
+        assertTrue(m.find());
+        return new int[]{ Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)) };
+    }
+
+    // Each solver is cached around: a run on the same input again finds
+    // every component, and after a want list is emptied the solver only
+    // gets the components that changed.  Every solver withdraws another
+    // item, so that something is always missed.
+    @Test
+    public void cachedSolver() throws IOException {
+        String[][] solvers = {
+            { "VERBOSE" },
+            { "INT-COSTS" },
+            { "COMPRESS-ITEMS" },
+            { "SPARSIFY=3" },
+        };
+        String[] items = { "1004", "48", "21", "692" };
+        for (int k = 0; k < solvers.length; k++) {
+            List<String> options = new ArrayList<String>(Arrays.asList(solvers[k]));
+            options.add("VERBOSE");
+            String expected = run(options.toArray(new String[0]));
+            List<String> changed = withdraw(pref(), items[k]);
+            String expectedChanged = run(changed, options.toArray(new String[0]));
+            options.add("CACHE-COMPONENTS");
+            String[] cached = options.toArray(new String[0]);
+
+            assertSameResult(expected, run(cached));
+            String output = run(cached);
+            assertSameResult(expected, output);
+            int[] hits = cacheHits(output);
+            assertEquals(hits[1], hits[0]);
+
+            output = run(changed, cached);
+            assertSameResult(expectedChanged, output);
+            hits = cacheHits(output);
+            assertTrue(0 < hits[0] && hits[0] < hits[1]);
+            if (options.contains("INT-COSTS")) assertNoFallback(output);
+        }
+    }
+
+    // pref.txt has want lists longer than each k, and every run adds some
+    // of the wants left aside back as the phases go
+    @Test
+    public void sparsify() throws IOException {
+        String expected = run();
+        String expectedUnit = runUnit();
+        for (int k : new int[]{ 1, 3, 10 }) {
+            String output = run("SPARSIFY=" + k, "VERBOSE");
+            assertTrue(output.contains("Sparsified to "));
+            assertSameResult(expected, output);
+            assertSameResult(expectedUnit, runUnit("SPARSIFY=" + k));
+        }
+    }
+
+    @Test
+    public void compressedSolverKeepsTies() throws IOException {
+        String output = run("COMPRESS-ITEMS", "RANDOM-TIES", "ITERATIONS=2", "SEED=1", "VERBOSE");
+        assertTrue(output.contains("COMPRESS-ITEMS is ignored"));
+        assertFalse(output.contains("Item classes"));
+        assertSameResult(run(), output);
+    }
+
+    // pref.txt has frontiers of over a thousand vertices, so the relaxations
+    // are split up between the threads
+    @Test
+    public void deltaStepping() throws IOException {
+        assertSameResult(run(), run("THREADS=4"));
+        assertSameResult(runUnit(), runUnit("THREADS=4"));
+    }
+
+    @Test
+    public void contractDummies() throws IOException {
+        // most of the dummies of pref.txt want or are wanted by one item
+        String output = run("CONTRACT-DUMMIES", "VERBOSE");
+        assertTrue(output.contains("Contracted "));
+        assertSameResult(run(), output);
+        assertSameResult(runUnit(), runUnit("CONTRACT-DUMMIES"));
+    }
+
+    // the components as sets of receiver ids, whatever their labels
+    static Set<Set<Integer>> components(Graph graph) {
+        Map<Integer,Set<Integer>> found = new HashMap<Integer,Set<Integer>>();
+        for (Graph.Vertex v : graph.RECEIVERS) {
+            Set<Integer> ids = found.get(v.component);
+            if (ids == null) found.put(v.component, ids = new HashSet<Integer>());
+            ids.add(v.id);
+        }
+        return new HashSet<Set<Integer>>(found.values());
+    }
+
+    @Test
+    public void parallelComponents() throws IOException {
+        // big enough for the pieces to be forked, and sparse enough to
+        // leave many components besides the large one
+        int n = 4 * ParallelComponents.SEQUENTIAL;
+        Random random = new Random(1);
+        Graph graph = new Graph();
+        for (int i = 0; i < n; i++) graph.addVertex("" + i, null, false);
+        for (int i = 0; i < n; i++) {
+            Graph.Vertex v = graph.getVertex("" + i);
+            graph.addEdge(v, v.twin, 1000);
+            for (int k = 1; k <= 2; k++)
+                graph.addEdge(v, graph.getVertex("" + random.nextInt(n)).twin, k);
+        }
+        graph.freeze();
+
+        graph.labelComponents();
+        Set<Set<Integer>> expected = components(graph);
+        assertTrue(expected.size() > 1);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            new ParallelComponents(graph.RECEIVERS, 0).label(pool);
+        }
+        finally {
+            pool.shutdown();
+        }
+        assertEquals(expected, components(graph));
+
+        // and through the whole run, pref.txt has more than enough items
+        assertSameResult(run(), run("THREADS=4"));
+    }
+
+    @Test
+    public void localityOrder() throws IOException {
+        assertSameResult(run(), run("LOCALITY-ORDER"));
+        assertSameResult(runUnit(), runUnit("LOCALITY-ORDER"));
+        assertSameResult(run(), run("LOCALITY-ORDER", "RANDOM-TIES", "ITERATIONS=3", "SEED=1"));
+    }
+
+    // every step of the search swaps along a tight cycle, so each matching
+    // it visits is still optimal, but not the same one
+    @Test
+    public void tightCycleSearch() throws IOException {
+        String output = run("SEARCH=TIGHT-CYCLES", "ITERATIONS=6", "SEED=1", "VERBOSE");
+        assertSameResult(run(), output);
+        assertTrue(iterations(output).size() > 1);
+        assertSameResult(runUnit(), runUnit("SEARCH=TIGHT-CYCLES", "ITERATIONS=6", "SEED=1"));
+    }
+
+    @Test
+    public void annealSearch() throws IOException {
+        String output = run("SEARCH=ANNEAL", "ITERATIONS=6", "SEED=1", "VERBOSE");
+        assertSameResult(run(), output);
+        assertTrue(iterations(output).size() > 1);
+        assertSameResult(runUnit(), runUnit("SEARCH=ANNEAL", "ITERATIONS=6", "SEED=1"));
+    }
+
+    static int previewTrades(String output) {
+        Matcher m = Pattern.compile("Preview: (\\d+) trades, upper bound on trades = (\\d+)").matcher(output);
+        assertTrue(m.find());
+        assertTrue(Integer.parseInt(m.group(1)) <= Integer.parseInt(m.group(2)));
+        return Integer.parseInt(m.group(1));
+    }
+
+    // top trading cycles are not optimal, so the preview never finds more
+    // trades than the full solve, with the option or as the /preview
+    // handler asks for it
+    @Test
+    public void previewTrades() throws IOException {
+        List<String> unit = pref();
+        unit.remove("#! LINEAR-PRIORITIES");
+        for (List<String> input : Arrays.asList(pref(), unit, withdraw(pref(), "48"))) {
+            int trades = Integer.parseInt(stat(run(input), "Num trades"));
+            assertTrue(previewTrades(run(input, "PREVIEW")) <= trades);
+            byte[] bytes = String.join("\n", input).getBytes();
+            assertTrue(previewTrades(GraphSnapshotTest.run(new String[]{ "--preview" }, bytes)) <= trades);
+        }
+    }
+}
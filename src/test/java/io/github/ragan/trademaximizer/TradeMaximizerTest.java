@@ -3,8 +3,15 @@ package io.github.ragan.trademaximizer;
 import org.junit.Test;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class TradeMaximizerTest {
 
@@ -19,4 +26,56 @@ public class TradeMaximizerTest {
 
         new TradeMaximizer().run(new String[]{}, stringBuilder.toString());
     }
+
+    // bad numbers on the command line are reported like those on #! lines,
+    // and the option keeps its default
+    @Test
+    public void badNumericArguments() throws IOException {
+        byte[] input = Files.readAllBytes(Paths.get("src/test/resources/pref.txt"));
+        String[][] cases = {
+            { "--iterations=abc", "--iterations argument must be a positive integer" },
+            { "--threads=-3", "--threads argument must be a positive integer" },
+            { "--sparsify=0", "--sparsify argument must be a positive integer" },
+            { "--time-limit=-1", "--time-limit argument must be a positive integer" },
+            { "--iterations=99999999999", "--iterations argument must be at most 2147483647" },
+            { "--small-step=x", "--small-step argument must be a non-negative integer" },
+            { "--top-solutions=0", "--top-solutions argument must be a positive integer" },
+        };
+        for (String[] c : cases) {
+            String output = GraphSnapshotTest.run(new String[]{ c[0] }, input);
+            assertTrue(c[0], output.contains("FATAL ERROR: " + c[1]));
+            assertTrue(c[0], output.contains("Num trades  = 242"));
+        }
+    }
+
+    // a file named on the command line is read through MappedInput, which
+    // must give the same want lists as standard input, also with CRLF line
+    // ends and a username that is not plain ASCII
+    @Test
+    public void inputFile() throws IOException {
+        String pref = new String(Files.readAllBytes(Paths.get("src/test/resources/pref.txt")), Charset.defaultCharset());
+        String[] inputs = {
+            pref,
+            pref.replace("\r\n", "\n").replace("\n", "\r\n"),
+            pref.replace("(_AiS_)", "(\u00e9l\u00e8ve)"),
+        };
+        File file = File.createTempFile("pref", ".txt");
+        try {
+            for (String input : inputs) {
+                byte[] bytes = input.getBytes(Charset.defaultCharset());
+                Files.write(file.toPath(), bytes);
+                String expected = GraphSnapshotTest.run(new String[]{}, bytes);
+                assertEquals(expected, GraphSnapshotTest.run(new String[]{ file.getPath() }, new byte[0]));
+                SolverTest.assertSameResult(SolverTest.run(), expected);
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void keepsAtLeastOneSolution() {
+        new BestSolutions("CHAIN-SIZES-SOS", null, 0);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,149 @@
+package io.github.ragan.trademaximizer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TradeSessionTest {
+
+    static List<String> pref() throws IOException {
+        return new ArrayList<String>(Files.readAllLines(Paths.get("src/test/resources/pref.txt")));
+    }
+
+    static TradeSession session(List<String> lines) throws IOException {
+        return new TradeSession(new String[]{}, input(lines), new ByteArrayOutputStream());
+    }
+
+    static ByteArrayInputStream input(List<String> lines) {
+        return new ByteArrayInputStream(String.join("\n", lines).getBytes());
+    }
+
+    // the want list line of item, as the session would read it from scratch
+    static void setLine(List<String> lines, String item, List<String> wants) {
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            int close = line.indexOf(')');
+            if (close < 0 || !line.startsWith(item + " :", close + 2)) continue;
+            lines.set(i, line.substring(0, close + 1) + " " + item + " : " + String.join(" ", wants));
+            return;
+        }
+        throw new IllegalArgumentException(item);
+    }
+
+    // the trade count printed by a full TradeMaximizer run
+    static int maximizerTrades(List<String> lines) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TradeMaximizer().run(new String[]{}, input(lines), out);
+        Matcher m = Pattern.compile("TRADE LOOPS \\((\\d+) total trades\\)").matcher(out.toString());
+        assertTrue(m.find());
+        return Integer.parseInt(m.group(1));
+    }
+
+    // the real items in the session's loops, dummies are named with a %
+    static int sessionTrades(TradeSession session) {
+        int trades = 0;
+        for (List<String> loop : session.getLoops()) {
+            for (String item : loop) {
+                if (!item.startsWith("%")) trades++;
+            }
+        }
+        return trades;
+    }
+
+    static void assertSolved(TradeSession session, List<String> lines) throws IOException {
+        assertEquals(session(lines).getTotalCost(), session.getTotalCost());
+        assertEquals(maximizerTrades(lines), sessionTrades(session));
+    }
+
+    @Test
+    public void solvesLikeTradeMaximizer() throws IOException {
+        List<String> lines = pref();
+        assertSolved(session(lines), lines);
+    }
+
+    @Test
+    public void setWants() throws IOException {
+        List<String> lines = pref();
+        TradeSession session = session(lines);
+
+        List<String> wants = Arrays.asList("21", "36", "48");
+        session.setWants("463", wants);
+        setLine(lines, "463", wants);
+        assertSolved(session, lines);
+
+        wants = Arrays.asList("175", "466");
+        session.setWants("464", wants);
+        setLine(lines, "464", wants);
+        assertSolved(session, lines);
+
+        wants = new ArrayList<String>();
+        session.setWants("466", wants);
+        setLine(lines, "466", wants);
+        assertSolved(session, lines);
+    }
+
+    @Test
+    public void addAndRemoveWant() throws IOException {
+        List<String> lines = pref();
+        TradeSession session = session(lines);
+
+        session.addWant("48", "463");
+        List<String> wants = new ArrayList<String>(session.getWants("48"));
+        assertEquals("463", wants.get(wants.size() - 1));
+        setLine(lines, "48", wants);
+        assertSolved(session, lines);
+
+        session.removeWant("48", "309");
+        wants.remove("309");
+        assertEquals(wants, session.getWants("48"));
+        setLine(lines, "48", wants);
+        assertSolved(session, lines);
+    }
+
+    @Test
+    public void whatIfLeavesSessionUnchanged() throws IOException {
+        List<String> lines = pref();
+        TradeSession session = session(lines);
+        List<List<String>> loops = session.getLoops();
+        long cost = session.getTotalCost();
+        List<String> wants = session.getWants("463");
+
+        List<String> changed = Arrays.asList("21", "36", "48");
+        TradeSession.WhatIf whatIf = session.whatIfSetWants("463", changed);
+        assertEquals(loops, session.getLoops());
+        assertEquals(cost, session.getTotalCost());
+        assertEquals(wants, session.getWants("463"));
+
+        setLine(lines, "463", changed);
+        TradeSession fresh = session(lines);
+        assertEquals(fresh.getTotalCost() - cost, whatIf.costDelta);
+        assertEquals(sessionTrades(fresh) - sessionTrades(session), whatIf.tradesDelta);
+
+        session.whatIfWithdraw("464");
+        session.whatIfAddWant("48", "463");
+        session.whatIfRemoveWant("48", "309");
+        assertEquals(loops, session.getLoops());
+        assertEquals(cost, session.getTotalCost());
+
+        // and the session still repairs as before
+        session.setWants("463", changed);
+        assertSolved(session, lines);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownItem() throws IOException {
+        session(pref()).setWants("NO-SUCH-ITEM", Arrays.asList("463"));
+    }
+}